@@ -0,0 +1,818 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.hash.Hashing;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.obiba.es.mica.support.DocumentVersions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import co.elastic.clients.elasticsearch._types.ErrorCause;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.json.JsonpMapper;
+import jakarta.json.stream.JsonParser;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Streams documents into an index by chunks: documents are serialized directly in the NDJSON body of a bulk request,
+ * which is sent each time the number of pending operations or its size reaches the configured limits. Chunks are
+ * submitted asynchronously, up to a maximum number of requests in flight; the producer is blocked while this limit
+ * is reached. Chunk buffers are reused once their request has completed.
+ * <p>
+ * Operations rejected because the cluster is under load or temporarily unavailable are re-submitted after an
+ * exponential backoff with jitter, up to a maximum number of retries; a chunk holds its request slot until all its
+ * retries are done. The other failures are permanent, they are handed to the failure handler when the processor
+ * is closed.
+ */
+class ESBulkProcessor implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(ESBulkProcessor.class);
+
+  private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+
+  // buffers grow up to the maximum request size, most write-behind flushes only hold a few documents
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  private static final long MAX_RETRY_DELAY = 60 * 1000;
+
+  private static final String VERSION_CONFLICT = "version_conflict_engine_exception";
+
+  private static final Set<Integer> RETRYABLE_STATUSES = Set.of(429, 502, 503, 504);
+
+  private static final Set<String> RETRYABLE_ERROR_TYPES = Set.of(
+    "es_rejected_execution_exception",
+    "circuit_breaking_exception",
+    "unavailable_shards_exception",
+    "no_shard_available_action_exception",
+    "primary_missing_action_exception",
+    "node_not_connected_exception",
+    "node_disconnected_exception",
+    "process_cluster_event_timeout_exception",
+    // writes are blocked while an index is copied into a new generation
+    "cluster_block_exception");
+
+  private final ESSearchEngineService esSearchService;
+
+  private final String indexName;
+
+  private final int maxActions;
+
+  private final long maxBytes;
+
+  private final int concurrentRequests;
+
+  private final int maxRetries;
+
+  private final long retryDelay;
+
+  private final Semaphore inFlight;
+
+  private final BlockingQueue<ChunkBuffer> bufferPool;
+
+  private final Runnable onIndexNotFound;
+
+  private final Consumer<List<Failure>> onFailures;
+
+  private Chunk chunk;
+
+  private int chunkCount = 0;
+
+  private int documentCount = 0;
+
+  private final AtomicInteger retryCount = new AtomicInteger();
+
+  // permanent failures, guarded by itself
+  private final List<Failure> failures = new ArrayList<>();
+
+  private ObjIntConsumer<String> progressListener;
+
+  private IntConsumer staleWriteListener;
+
+  // ids of the documents not written because a newer version is indexed, guarded by failures
+  private final Set<String> staleIds = new HashSet<>();
+
+  // chunks completed out of order, guarded by itself
+  private final SortedMap<Integer, Chunk> completedChunks = new TreeMap<>();
+
+  private int nextChunkToAcknowledge = 1;
+
+  // last chunk done without gap, guarded by completedChunks
+  private Chunk acknowledged;
+
+  // last chunk the progress listener was notified of, only read and written by the producer thread
+  private Chunk notified;
+
+  // hashes of the documents previously indexed, null when content hashing is disabled
+  private Map<String, Long> previousHashes;
+
+  private final Map<String, Long> indexedHashes = new HashMap<>();
+
+  private int newCount = 0;
+
+  private int updatedCount = 0;
+
+  private int unchangedCount = 0;
+
+  ESBulkProcessor(ESSearchEngineService esSearchService, String indexName, Runnable onIndexNotFound, Consumer<List<Failure>> onFailures) {
+    this.esSearchService = esSearchService;
+    this.indexName = indexName;
+    this.maxActions = Math.max(1, esSearchService.getBulkMaxActions());
+    this.maxBytes = Math.max(1, esSearchService.getBulkMaxBytes());
+    this.concurrentRequests = Math.max(1, esSearchService.getBulkConcurrentRequests());
+    this.maxRetries = Math.max(0, esSearchService.getBulkMaxRetries());
+    this.retryDelay = Math.max(1, esSearchService.getBulkRetryDelay());
+    this.inFlight = new Semaphore(concurrentRequests);
+    // one buffer per request in flight plus the one being filled
+    this.bufferPool = new ArrayBlockingQueue<>(concurrentRequests + 1);
+    this.onIndexNotFound = onIndexNotFound;
+    this.onFailures = onFailures;
+  }
+
+  /**
+   * Set the listener notified, when chunks complete, of the number of operations that are done (applied or failed
+   * permanently), counting from the first one without gap, and of the document id of the last of them. The listener
+   * is called by the producer thread, when it submits a chunk and when it closes the processor, not by the thread
+   * of the HTTP client that completed the chunk.
+   *
+   * @param progressListener
+   */
+  void setProgressListener(ObjIntConsumer<String> progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Set the listener notified of the number of documents of a chunk that were not written because the index has a
+   * more recent version of them.
+   *
+   * @param staleWriteListener
+   */
+  void setStaleWriteListener(IntConsumer staleWriteListener) {
+    this.staleWriteListener = staleWriteListener;
+  }
+
+  /**
+   * Hash the operations of the indexed documents and skip the documents that did not change.
+   *
+   * @param previousHashes hashes of the documents previously indexed, by document id
+   */
+  void setContentHashing(Map<String, Long> previousHashes) {
+    this.previousHashes = previousHashes;
+  }
+
+  /**
+   * Serialize the document in the current chunk, the chunk is submitted when full.
+   *
+   * @param id
+   * @param routing
+   * @param document
+   */
+  void index(String id, @Nullable String routing, Object document) {
+    Chunk current = currentChunk();
+    current.begin(id);
+    try {
+      writeOperation(esSearchService, current.buffer, "index", id, routing, document);
+    } catch (IOException e) {
+      current.rollback();
+      throw new RuntimeException("Cannot serialize " + document + " to ElasticSearch", e);
+    }
+
+    if (previousHashes != null && isUnchanged(current, id)) {
+      current.rollback();
+      return;
+    }
+
+    added();
+  }
+
+  /**
+   * Add the deletion of a document to the current chunk, the chunk is submitted when full.
+   *
+   * @param id
+   * @param routing
+   */
+  void delete(String id, @Nullable String routing) {
+    Chunk current = currentChunk();
+    current.begin(id);
+    try {
+      writeOperation(esSearchService, current.buffer, "delete", id, routing, null);
+    } catch (IOException e) {
+      current.rollback();
+      throw new RuntimeException("Cannot serialize deletion of " + id, e);
+    }
+
+    added();
+  }
+
+  /**
+   * Add an already serialized operation to the current chunk, the chunk is submitted when full.
+   *
+   * @param id
+   * @param action the action line
+   * @param source the document line, null for a deletion
+   */
+  void append(String id, String action, @Nullable String source) {
+    Chunk current = currentChunk();
+    current.begin(id);
+    current.buffer.writeBytes(action.getBytes(StandardCharsets.UTF_8));
+    current.buffer.write('\n');
+    if (source != null) {
+      current.buffer.writeBytes(source.getBytes(StandardCharsets.UTF_8));
+      current.buffer.write('\n');
+    }
+
+    added();
+  }
+
+  /**
+   * Submit the pending operations, if any. Blocks until a request slot is available.
+   */
+  void flush() {
+    if (chunk == null || chunk.size() == 0) return;
+
+    Chunk submitted = chunk;
+    submitted.lastOperation = documentCount;
+    submitted.lastId = submitted.ids.get(submitted.size() - 1);
+    chunk = null;
+
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted while waiting to bulk index chunk {} of index {}", submitted.number, indexName);
+      failAll(submitted, 0, "interrupted", "Interrupted while waiting for a request slot");
+      releaseBuffer(submitted.buffer);
+      acknowledge(submitted);
+      return;
+    }
+
+    notifyProgress();
+    send(submitted);
+  }
+
+  /**
+   * Notify the progress listener of the chunks done since it was last notified, if any. To be called by the
+   * producer thread.
+   */
+  void notifyProgress() {
+    if (progressListener == null) return;
+    Chunk done;
+    synchronized (completedChunks) {
+      done = acknowledged;
+    }
+    if (done == null || done == notified) return;
+    notified = done;
+    progressListener.accept(done.lastId, done.lastOperation);
+  }
+
+  int getDocumentCount() {
+    return documentCount;
+  }
+
+  int getFailureCount() {
+    synchronized (failures) {
+      return failures.size();
+    }
+  }
+
+  int getRetryCount() {
+    return retryCount.get();
+  }
+
+  int getStaleCount() {
+    synchronized (failures) {
+      return staleIds.size();
+    }
+  }
+
+  int getNewCount() {
+    return newCount;
+  }
+
+  int getUpdatedCount() {
+    return updatedCount;
+  }
+
+  int getUnchangedCount() {
+    return unchangedCount;
+  }
+
+  /**
+   * @return the hashes of the documents that were indexed successfully, by document id
+   */
+  Map<String, Long> getIndexedHashes() {
+    Map<String, Long> result = new HashMap<>(indexedHashes);
+    synchronized (failures) {
+      failures.forEach(failure -> result.remove(failure.getId()));
+      staleIds.forEach(result::remove);
+    }
+    return result;
+  }
+
+  List<Failure> getFailures() {
+    synchronized (failures) {
+      return new ArrayList<>(failures);
+    }
+  }
+
+  /**
+   * Submit the pending operations, wait for all the requests in flight (including their retries) to complete and
+   * report the permanent failures.
+   */
+  @Override
+  public void close() {
+    flush();
+    try {
+      inFlight.acquire(concurrentRequests);
+      inFlight.release(concurrentRequests);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.error("Interrupted while waiting for bulk indexing of index {} to complete", indexName);
+    }
+    notifyProgress();
+    List<Failure> permanentFailures = getFailures();
+    log.debug("Bulk indexed {} documents in index {} in {} chunks ({} retries, {} failures)", documentCount, indexName,
+      chunkCount, retryCount.get(), permanentFailures.size());
+    if (!permanentFailures.isEmpty() && onFailures != null) onFailures.accept(permanentFailures);
+  }
+
+  /**
+   * Write a bulk operation as NDJSON lines. The target index is not part of the action line, it is given by the
+   * request path, so that the operation can be sent again to any index. When external versioning is enabled, the
+   * version of the indexed document is part of the action.
+   *
+   * @param esSearchService
+   * @param out
+   * @param action
+   * @param id
+   * @param routing
+   * @param document null for a deletion
+   * @throws IOException
+   */
+  static void writeOperation(ESSearchEngineService esSearchService, OutputStream out, String action, String id,
+                             @Nullable String routing, @Nullable Object document) throws IOException {
+    writeAction(esSearchService, out, action, id, routing, document == null ? null : getVersion(esSearchService, document));
+    out.write('\n');
+    if (document == null) return;
+
+    try (JsonGenerator generator = esSearchService.getObjectMapper().getFactory().createGenerator(out)) {
+      esSearchService.getObjectWriter(document.getClass()).writeValue(generator, document);
+    }
+    out.write('\n');
+  }
+
+  /**
+   * Write the action line of a bulk operation, without the line separator.
+   *
+   * @param esSearchService
+   * @param out
+   * @param action
+   * @param id
+   * @param routing
+   * @param version the external version of the indexed document, if any
+   * @throws IOException
+   */
+  static void writeAction(ESSearchEngineService esSearchService, OutputStream out, String action, String id,
+                          @Nullable String routing, @Nullable Long version) throws IOException {
+    try (JsonGenerator generator = esSearchService.getObjectMapper().getFactory().createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeObjectFieldStart(action);
+      generator.writeStringField("_id", id);
+      if (routing != null) generator.writeStringField("routing", routing);
+      if (version != null) {
+        generator.writeNumberField("version", version);
+        generator.writeStringField("version_type", esSearchService.getVersionType());
+      }
+      generator.writeEndObject();
+      generator.writeEndObject();
+    }
+  }
+
+  /**
+   * @param esSearchService
+   * @param document
+   * @return the external version of the document, null if external versioning is not enabled
+   */
+  @Nullable
+  static Long getVersion(ESSearchEngineService esSearchService, Object document) {
+    return esSearchService.getVersionType() == null ? null : DocumentVersions.of(document);
+  }
+
+  static boolean isRetryable(int status, @Nullable String errorType) {
+    return RETRYABLE_STATUSES.contains(status) || RETRYABLE_ERROR_TYPES.contains(errorType);
+  }
+
+  //
+  // Private methods
+  //
+
+  /**
+   * Hash the operation that was just written, the routing and the document source being part of it.
+   *
+   * @param current
+   * @param id
+   * @return true if the previous indexing of the document had the same hash
+   */
+  private boolean isUnchanged(Chunk current, String id) {
+    long hash = current.hash(current.size() - 1);
+    Long previous = previousHashes.get(id);
+    if (previous != null && previous == hash) {
+      unchangedCount++;
+      return true;
+    }
+    if (previous == null) newCount++;
+    else updatedCount++;
+    indexedHashes.put(id, hash);
+    return false;
+  }
+
+  private Chunk currentChunk() {
+    if (chunk == null) chunk = new Chunk(++chunkCount, 0, takeBuffer());
+    return chunk;
+  }
+
+  private void added() {
+    documentCount++;
+    if (chunk.size() >= maxActions || chunk.buffer.size() >= maxBytes) flush();
+  }
+
+
+  /**
+   * Send the chunk, its request slot is released once it is fully processed.
+   *
+   * @param submitted
+   */
+  private void send(Chunk submitted) {
+    log.debug("Bulk indexing chunk {} of index {}: {} documents, {} bytes (attempt {})", submitted.number, indexName,
+      submitted.size(), submitted.buffer.size(), submitted.attempt + 1);
+    Request request = new Request("POST", "/" + indexName + "/_bulk");
+    request.setEntity(new ByteArrayEntity(submitted.buffer.array(), 0, submitted.buffer.size(), NDJSON));
+    try {
+      esSearchService.getRestClient().performRequestAsync(request, new ResponseListener() {
+        @Override
+        public void onSuccess(Response response) {
+          BulkResponse bulkResponse;
+          try {
+            bulkResponse = readBulkResponse(response);
+          } catch (Exception e) {
+            onFailure(e);
+            return;
+          }
+          onResponse(submitted, bulkResponse);
+        }
+
+        @Override
+        public void onFailure(Exception exception) {
+          onRequestFailure(submitted, exception);
+        }
+      });
+    } catch (Exception e) {
+      onRequestFailure(submitted, e);
+    }
+  }
+
+  private BulkResponse readBulkResponse(Response response) throws IOException {
+    JsonpMapper mapper = esSearchService.getClient()._transport().jsonpMapper();
+    try (InputStream content = response.getEntity().getContent();
+         JsonParser parser = mapper.jsonProvider().createParser(content)) {
+      return BulkResponse._DESERIALIZER.deserialize(parser, mapper);
+    }
+  }
+
+  private void onResponse(Chunk submitted, BulkResponse response) {
+    if (!response.errors()) {
+      onComplete(submitted);
+      return;
+    }
+
+    List<Integer> retryable = new ArrayList<>();
+    int chunkFailures = 0;
+    int chunkStaleWrites = 0;
+    boolean indexNotFound = false;
+    List<BulkResponseItem> items = response.items();
+    for (int i = 0; i < items.size(); i++) {
+      BulkResponseItem item = items.get(i);
+      ErrorCause error = item.error();
+      if (error == null) continue;
+
+      if (VERSION_CONFLICT.equals(error.type())) {
+        // the index has a more recent version of the document
+        chunkStaleWrites++;
+        synchronized (failures) {
+          staleIds.add(item.id());
+        }
+      } else if (submitted.attempt < maxRetries && isRetryable(item.status(), error.type())) {
+        retryable.add(i);
+      } else {
+        chunkFailures++;
+        indexNotFound = indexNotFound || "index_not_found_exception".equals(error.type());
+        addFailure(new Failure(item.operationType().jsonValue(), item.id(), item.status(), error.type(), error.reason(),
+          submitted.slice(i)));
+      }
+    }
+    if (indexNotFound) onIndexNotFound.run();
+    if (chunkStaleWrites > 0) {
+      log.debug("Bulk indexing chunk {} of index {}: {} stale documents ignored", submitted.number, indexName, chunkStaleWrites);
+      if (staleWriteListener != null) staleWriteListener.accept(chunkStaleWrites);
+    }
+    if (chunkFailures > 0) {
+      log.warn("Bulk indexing chunk {} of index {}: {} of {} documents failed", submitted.number, indexName, chunkFailures, submitted.size());
+    }
+
+    if (retryable.isEmpty()) {
+      onComplete(submitted);
+      return;
+    }
+
+    // keep only the rejected operations, in their original order
+    Chunk retry = new Chunk(submitted.number, submitted.attempt + 1, takeBuffer());
+    retry.lastOperation = submitted.lastOperation;
+    retry.lastId = submitted.lastId;
+    retryable.forEach(i -> retry.copy(submitted, i));
+    releaseBuffer(submitted.buffer);
+    scheduleRetry(retry);
+  }
+
+  private void onRequestFailure(Chunk submitted, Exception exception) {
+    if (submitted.attempt < maxRetries && isRetryable(exception)) {
+      log.warn("Failed to bulk index chunk {} of index {}, will retry - {}", submitted.number, indexName, exception.getMessage());
+      submitted.attempt++;
+      scheduleRetry(submitted);
+      return;
+    }
+
+    log.error("Failed to bulk index chunk {} of index {} - {}", submitted.number, indexName, exception);
+    int status = exception instanceof ResponseException
+      ? ((ResponseException) exception).getResponse().getStatusLine().getStatusCode()
+      : 0;
+    failAll(submitted, status, exception.getClass().getSimpleName(), exception.getMessage());
+    onComplete(submitted);
+  }
+
+  private void scheduleRetry(Chunk retry) {
+    long delay = getRetryDelay(retryDelay, retry.attempt);
+    retryCount.addAndGet(retry.size());
+    log.debug("Retrying {} operations of chunk {} of index {} in {}ms", retry.size(), retry.number, indexName, delay);
+    CompletableFuture.runAsync(() -> send(retry), CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Exponential backoff with "equal jitter": half of the delay is fixed, the other half is random, so that the
+   * chunks rejected at the same time are not re-submitted all at once.
+   *
+   * @param retryDelay delay of the first retry
+   * @param attempt
+   * @return
+   */
+  static long getRetryDelay(long retryDelay, int attempt) {
+    long delay = Math.min(MAX_RETRY_DELAY, retryDelay << Math.min(attempt - 1, 20));
+    long half = Math.max(1, delay / 2);
+    return half + ThreadLocalRandom.current().nextLong(half + 1);
+  }
+
+  private boolean isRetryable(Exception exception) {
+    if (exception instanceof ResponseException) {
+      return RETRYABLE_STATUSES.contains(((ResponseException) exception).getResponse().getStatusLine().getStatusCode());
+    }
+    // connection failures and timeouts
+    return exception instanceof IOException;
+  }
+
+  private void failAll(Chunk failed, int status, String type, String reason) {
+    for (int i = 0; i < failed.size(); i++) {
+      addFailure(new Failure(null, failed.ids.get(i), status, type, reason, failed.slice(i)));
+    }
+  }
+
+  private void addFailure(Failure failure) {
+    synchronized (failures) {
+      failures.add(failure);
+    }
+  }
+
+  private void onComplete(Chunk completed) {
+    releaseBuffer(completed.buffer);
+    try {
+      acknowledge(completed);
+    } finally {
+      inFlight.release();
+    }
+  }
+
+  /**
+   * Record that a chunk is done, the progress listener is notified later by the producer thread: this one is a
+   * thread of the HTTP client, it must not be blocked by the listener.
+   *
+   * @param completed
+   */
+  void acknowledge(Chunk completed) {
+    if (progressListener == null) return;
+    synchronized (completedChunks) {
+      completedChunks.put(completed.number, completed);
+      while (!completedChunks.isEmpty() && completedChunks.firstKey() == nextChunkToAcknowledge) {
+        acknowledged = completedChunks.remove(nextChunkToAcknowledge++);
+      }
+    }
+  }
+
+  private ChunkBuffer takeBuffer() {
+    ChunkBuffer pooled = bufferPool.poll();
+    return pooled == null ? new ChunkBuffer((int) Math.min(maxBytes, INITIAL_BUFFER_SIZE)) : pooled;
+  }
+
+  private void releaseBuffer(ChunkBuffer buffer) {
+    buffer.reset();
+    bufferPool.offer(buffer);
+  }
+
+  /**
+   * Operation that could not be applied.
+   */
+  static class Failure {
+
+    private final String operation;
+
+    private final String id;
+
+    private final int status;
+
+    private final String type;
+
+    private final String reason;
+
+    private final byte[] request;
+
+    Failure(@Nullable String operation, String id, int status, String type, String reason, byte[] request) {
+      this.operation = operation;
+      this.id = id;
+      this.status = status;
+      this.type = type;
+      this.reason = reason;
+      this.request = request;
+    }
+
+    /**
+     * @return the bulk operation type, null when the whole request failed
+     */
+    @Nullable
+    String getOperation() {
+      return operation;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    /**
+     * @return the HTTP status, 0 when no response was received
+     */
+    int getStatus() {
+      return status;
+    }
+
+    String getType() {
+      return type;
+    }
+
+    String getReason() {
+      return reason;
+    }
+
+    /**
+     * @return the NDJSON lines of the operation, as sent in the bulk request
+     */
+    byte[] getRequest() {
+      return request;
+    }
+  }
+
+  /**
+   * Operations of a bulk request, with the offset of each of them in the request body so that they can be
+   * re-submitted individually.
+   */
+  static class Chunk {
+
+    private final int number;
+
+    private int attempt;
+
+    // number of operations added to the processor up to the end of this chunk
+    int lastOperation;
+
+    // document id of the last operation of the chunk, as submitted the first time
+    String lastId;
+
+    final ChunkBuffer buffer;
+
+    private final List<String> ids = new ArrayList<>();
+
+    private int[] offsets = new int[64];
+
+    Chunk(int number, int attempt, ChunkBuffer buffer) {
+      this.number = number;
+      this.attempt = attempt;
+      this.buffer = buffer;
+    }
+
+    int size() {
+      return ids.size();
+    }
+
+    /**
+     * Start a new operation at the end of the buffer.
+     *
+     * @param id
+     */
+    void begin(String id) {
+      if (ids.size() == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      offsets[ids.size()] = buffer.size();
+      ids.add(id);
+    }
+
+    /**
+     * Remove the last operation, partially written.
+     */
+    void rollback() {
+      int last = ids.size() - 1;
+      buffer.truncate(offsets[last]);
+      ids.remove(last);
+    }
+
+    void copy(Chunk source, int item) {
+      begin(source.ids.get(item));
+      int start = source.offsets[item];
+      buffer.write(source.buffer.array(), start, source.end(item) - start);
+    }
+
+    long hash(int item) {
+      int start = offsets[item];
+      return Hashing.murmur3_128().hashBytes(buffer.array(), start, end(item) - start).asLong();
+    }
+
+    byte[] slice(int item) {
+      return Arrays.copyOfRange(buffer.array(), offsets[item], end(item));
+    }
+
+    private int end(int item) {
+      return item + 1 < size() ? offsets[item + 1] : buffer.size();
+    }
+  }
+
+  /**
+   * Growable byte buffer giving access to its backing array, so that it can be sent without copy.
+   */
+  static class ChunkBuffer extends ByteArrayOutputStream {
+
+    ChunkBuffer(int size) {
+      super(size);
+    }
+
+    byte[] array() {
+      return buf;
+    }
+
+    void truncate(int size) {
+      count = size;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import org.obiba.es.mica.support.IndexGenerations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hashes of the documents last bulk indexed, by index alias and document id, kept in memory and saved in one binary
+ * file per index. A document written or deleted by any other mean loses its hash, so that it is sent again.
+ */
+class ESContentHashes {
+
+  private static final Logger log = LoggerFactory.getLogger(ESContentHashes.class);
+
+  private final File folder;
+
+  private final ConcurrentMap<String, ConcurrentMap<String, Long>> hashes = new ConcurrentHashMap<>();
+
+  // indices having changes not saved yet
+  private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+  ESContentHashes(File folder) {
+    this.folder = folder;
+  }
+
+  /**
+   * @param indexName
+   * @return the document hashes of the index, loaded on first access
+   */
+  Map<String, Long> get(String indexName) {
+    return hashes.computeIfAbsent(IndexGenerations.aliasOf(indexName), this::load);
+  }
+
+  /**
+   * Record the hashes of documents that were indexed.
+   *
+   * @param indexName
+   * @param indexed
+   */
+  void update(String indexName, Map<String, Long> indexed) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    hashes.computeIfAbsent(alias, this::load).putAll(indexed);
+    save(alias);
+  }
+
+  /**
+   * Replace the hashes of an index that was fully reindexed.
+   *
+   * @param indexName
+   * @param indexed
+   */
+  void replace(String indexName, Map<String, Long> indexed) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    hashes.put(alias, new ConcurrentHashMap<>(indexed));
+    save(alias);
+  }
+
+  void remove(String indexName, String id) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    Map<String, Long> indexHashes = hashes.computeIfAbsent(alias, this::load);
+    if (indexHashes.remove(id) != null) dirty.add(alias);
+  }
+
+  void clear(String indexName) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    hashes.put(alias, new ConcurrentHashMap<>());
+    dirty.remove(alias);
+    File file = getFile(alias);
+    if (file.exists() && !file.delete()) log.warn("Cannot delete content hashes {}", file);
+  }
+
+  /**
+   * Save the indices having unsaved changes.
+   */
+  void save() {
+    dirty.forEach(this::save);
+  }
+
+  //
+  // Private methods
+  //
+
+  private ConcurrentMap<String, Long> load(String alias) {
+    ConcurrentMap<String, Long> indexHashes = new ConcurrentHashMap<>();
+    File file = getFile(alias);
+    if (!file.exists()) return indexHashes;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        indexHashes.put(in.readUTF(), in.readLong());
+      }
+    } catch (IOException e) {
+      // all documents will be considered as new
+      log.error("Cannot read content hashes of index {} - {}", alias, e);
+      indexHashes.clear();
+    }
+    return indexHashes;
+  }
+
+  private synchronized void save(String alias) {
+    dirty.remove(alias);
+    Map<String, Long> indexHashes = hashes.get(alias);
+    if (indexHashes == null) return;
+
+    if (!folder.exists()) folder.mkdirs();
+    File tmp = new File(folder, alias + ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp.toPath())))) {
+        Map<String, Long> snapshot = Map.copyOf(indexHashes);
+        out.writeInt(snapshot.size());
+        for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue());
+        }
+      }
+      Files.move(tmp.toPath(), getFile(alias).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("Cannot save content hashes of index {} - {}", alias, e);
+    }
+  }
+
+  private File getFile(String alias) {
+    return new File(folder, alias + ".hashes");
+  }
+}
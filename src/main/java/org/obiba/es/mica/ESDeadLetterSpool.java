@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.obiba.es.mica.support.IndexGenerations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Append-only NDJSON files, one per index, of the write operations that could not be applied, in the bulk request
+ * format. The spool of an index is replayed by renaming it, so that the operations failing again are appended to a
+ * new spool, and sending its content in bulk. Updates by query are spooled as an "update_by_query" action line
+ * holding the query and the script, they are run in turn with the bulk operations.
+ * <p>
+ * Operations are spooled against the index alias, not the generation they were sent to. A replayed operation
+ * overwrites the document, even if it was written again meanwhile, unless external versioning is enabled. The
+ * operations of an index that is dropped are discarded, so are the ones spooled before a rebuild of the index.
+ */
+class ESDeadLetterSpool {
+
+  private static final Logger log = LoggerFactory.getLogger(ESDeadLetterSpool.class);
+
+  private static final String SPOOL_SUFFIX = ".ndjson";
+
+  private static final String REPLAY_SUFFIX = ".replay";
+
+  private static final String HELD_SUFFIX = ".held";
+
+  private static final String UPDATE_BY_QUERY = "update_by_query";
+
+  private static final Set<String> ACTIONS = Set.of("index", "create", "update", "delete", UPDATE_BY_QUERY);
+
+  private final ESSearchEngineService esSearchService;
+
+  private final File folder;
+
+  ESDeadLetterSpool(ESSearchEngineService esSearchService, File folder) {
+    this.esSearchService = esSearchService;
+    this.folder = folder;
+  }
+
+  /**
+   * Spool the operations of a bulk request that failed.
+   *
+   * @param indexName
+   * @param failures
+   */
+  void add(String indexName, List<ESBulkProcessor.Failure> failures) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    failures.stream()
+      .filter(failure -> failure.getRequest() != null)
+      .forEach(failure -> out.writeBytes(failure.getRequest()));
+    append(indexName, out, failures.size());
+  }
+
+  /**
+   * Spool a single document write that failed.
+   *
+   * @param indexName
+   * @param action
+   * @param id
+   * @param routing
+   * @param document null for a deletion
+   */
+  void add(String indexName, String action, String id, @Nullable String routing, @Nullable Object document) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      ESBulkProcessor.writeOperation(esSearchService, out, action, id, routing, document);
+    } catch (IOException e) {
+      log.error("Cannot spool {} {} [{}] - {}", action, id, indexName, e);
+      return;
+    }
+    append(indexName, out, 1);
+  }
+
+  /**
+   * Spool an update by query that failed.
+   *
+   * @param indexName
+   * @param operation the query and the script of the update
+   */
+  void addUpdateByQuery(String indexName, ObjectNode operation) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ObjectNode action = esSearchService.getObjectMapper().createObjectNode();
+    action.set(UPDATE_BY_QUERY, operation);
+    out.writeBytes(action.toString().getBytes(StandardCharsets.UTF_8));
+    out.write('\n');
+    append(indexName, out, 1);
+  }
+
+  /**
+   * @return the names of the indices having spooled operations
+   */
+  Set<String> getIndexNames() {
+    Set<String> indexNames = new TreeSet<>();
+    String[] files = folder.list();
+    if (files == null) return indexNames;
+    Arrays.stream(files)
+      .filter(file -> file.endsWith(SPOOL_SUFFIX) || file.endsWith(REPLAY_SUFFIX))
+      .forEach(file -> indexNames.add(file.substring(0, file.lastIndexOf('.'))));
+    return indexNames;
+  }
+
+  /**
+   * Send the spooled operations of an index in bulk, including the ones of an interrupted replay. Malformed lines,
+   * the last one of a spool that was not fully written for instance, are skipped.
+   *
+   * @param indexName
+   * @param bulkProcessorFactory
+   * @param updateByQuery runs a spooled update by query, given its query and script
+   * @return the number of operations sent
+   */
+  int replay(String indexName, Function<String, ESBulkProcessor> bulkProcessorFactory, Consumer<JsonNode> updateByQuery) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    File replayFile = getFile(alias, REPLAY_SUFFIX);
+    synchronized (this) {
+      File spoolFile = getSpoolFile(alias);
+      if (!replayFile.exists() && spoolFile.exists() && !spoolFile.renameTo(replayFile)) {
+        log.error("Cannot replay spooled operations of index {}, {} cannot be renamed", alias, spoolFile);
+        return 0;
+      }
+    }
+    if (!replayFile.exists()) return 0;
+
+    int count = 0;
+    ESBulkProcessor bulkProcessor = null;
+    try (BufferedReader reader = Files.newBufferedReader(replayFile.toPath(), StandardCharsets.UTF_8)) {
+      String action;
+      while ((action = reader.readLine()) != null) {
+        if (action.isEmpty()) continue;
+        JsonNode node = readObject(action);
+        String type = node == null || node.size() != 1 ? null : node.fieldNames().next();
+        if (type == null || !ACTIONS.contains(type) || !node.get(type).isObject()) {
+          log.warn("Skipping malformed spooled operation of index {}: {}", alias, action);
+          continue;
+        }
+        if (UPDATE_BY_QUERY.equals(type)) {
+          // the operations spooled before are applied first
+          if (bulkProcessor != null) bulkProcessor.close();
+          bulkProcessor = null;
+          try {
+            updateByQuery.accept(node.get(type));
+          } catch (RuntimeException e) {
+            log.error("Failed to replay spooled update by query of index {} - {}", alias, e);
+          }
+          count++;
+          continue;
+        }
+        String source = "delete".equals(type) ? null : reader.readLine();
+        if (source != null && readObject(source) == null) {
+          log.warn("Skipping spooled operation of index {} with a malformed document: {}", alias, action);
+          continue;
+        }
+        if (bulkProcessor == null) bulkProcessor = bulkProcessorFactory.apply(alias);
+        bulkProcessor.append(node.get(type).path("_id").asText(), action, source);
+        count++;
+      }
+    } catch (IOException e) {
+      log.error("Failed to replay spooled operations of index {} - {}", alias, e);
+      return count;
+    } finally {
+      if (bulkProcessor != null) bulkProcessor.close();
+    }
+
+    if (!replayFile.delete()) log.warn("Cannot delete replayed spool {}", replayFile);
+    log.info("Replayed {} spooled operations of index {}", count, alias);
+    return count;
+  }
+
+  /**
+   * Set aside the spooled operations of an index that is being rebuilt, the rebuild writes all its documents again.
+   *
+   * @param indexName
+   */
+  synchronized void hold(String indexName) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    File heldFile = getFile(alias, HELD_SUFFIX);
+    // a replay in progress has the oldest operations
+    for (File file : Arrays.asList(getFile(alias, REPLAY_SUFFIX), getFile(alias, SPOOL_SUFFIX))) {
+      if (!file.exists()) continue;
+      try {
+        appendFile(file, heldFile);
+      } catch (IOException e) {
+        log.error("Cannot set aside spooled operations of index {} - {}", alias, e);
+      }
+    }
+  }
+
+  /**
+   * Spool again the operations set aside for a rebuild that did not complete, before the ones spooled since.
+   *
+   * @param indexName
+   */
+  synchronized void release(String indexName) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    File heldFile = getFile(alias, HELD_SUFFIX);
+    if (!heldFile.exists()) return;
+    File spoolFile = getSpoolFile(alias);
+    try {
+      if (spoolFile.exists()) appendFile(spoolFile, heldFile);
+      Files.move(heldFile.toPath(), spoolFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("Cannot spool again the operations of index {} - {}", alias, e);
+    }
+  }
+
+  /**
+   * Drop the operations set aside for a rebuild that completed, they are older than the rebuilt documents.
+   *
+   * @param indexName
+   */
+  synchronized void dropHeld(String indexName) {
+    delete(getFile(IndexGenerations.aliasOf(indexName), HELD_SUFFIX));
+  }
+
+  /**
+   * Drop all the spooled operations of an index, when it is dropped.
+   *
+   * @param indexName
+   */
+  synchronized void discard(String indexName) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    for (String suffix : Arrays.asList(SPOOL_SUFFIX, REPLAY_SUFFIX, HELD_SUFFIX)) {
+      delete(getFile(alias, suffix));
+    }
+  }
+
+  //
+  // Private methods
+  //
+
+  /**
+   * @param line
+   * @return the JSON object of the line, null if it is not one
+   */
+  @Nullable
+  private JsonNode readObject(String line) {
+    try {
+      JsonNode node = esSearchService.getObjectMapper().readTree(line);
+      return node != null && node.isObject() ? node : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Append the content of a file to another one and delete it.
+   *
+   * @param file
+   * @param target
+   * @throws IOException
+   */
+  private void appendFile(File file, File target) throws IOException {
+    try (OutputStream out = new FileOutputStream(target, true)) {
+      Files.copy(file.toPath(), out);
+    }
+    delete(file);
+  }
+
+  private void delete(File file) {
+    if (file.exists() && !file.delete()) log.warn("Cannot delete spool {}", file);
+  }
+
+  private synchronized void append(String indexName, ByteArrayOutputStream operations, int count) {
+    if (operations.size() == 0) return;
+
+    String alias = IndexGenerations.aliasOf(indexName);
+    if (!folder.exists()) folder.mkdirs();
+    try (OutputStream out = new FileOutputStream(getSpoolFile(alias), true)) {
+      operations.writeTo(out);
+      log.warn("Spooled {} failed operations of index {}", count, alias);
+    } catch (IOException e) {
+      log.error("Cannot spool {} failed operations of index {} - {}", count, alias, e);
+    }
+  }
+
+  private File getSpoolFile(String alias) {
+    return getFile(alias, SPOOL_SUFFIX);
+  }
+
+  private File getFile(String alias, String suffix) {
+    return new File(folder, alias + suffix);
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.google.common.collect.ImmutableSet;
+import org.obiba.mica.spi.search.IndexFieldMapping;
+
+import co.elastic.clients.elasticsearch._types.mapping.KeywordProperty;
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index field mapping compiled into the set of field names having an analyzed sub-field.
+ * <p>
+ * A field name is analyzed when its dot separated parts appear, in order, in the path of a keyword property with an
+ * "analyzed" sub-field (i.e. "name", "en" and "name.en" are analyzed when "name.en.analyzed" is mapped), which is
+ * what a JsonPath deep scan "$..name..en..analyzed" used to match.
+ */
+class ESIndexFieldMapping implements IndexFieldMapping {
+
+  private static final String ANALYZED = "analyzed";
+
+  // beyond this depth, only the full path and its suffixes are registered
+  private static final int MAX_SUBSEQUENCE_DEPTH = 10;
+
+  private final Set<String> analyzedFields;
+
+  private ESIndexFieldMapping(Set<String> analyzedFields) {
+    this.analyzedFields = analyzedFields;
+  }
+
+  static ESIndexFieldMapping empty() {
+    return new ESIndexFieldMapping(ImmutableSet.of());
+  }
+
+  static ESIndexFieldMapping of(Map<String, Property> properties) {
+    ImmutableSet.Builder<String> analyzedFields = ImmutableSet.builder();
+    if (properties != null) collectAnalyzedFields(properties, new ArrayList<>(), analyzedFields);
+    return new ESIndexFieldMapping(analyzedFields.build());
+  }
+
+  @Override
+  public boolean isAnalyzed(String fieldName) {
+    return analyzedFields.contains(fieldName);
+  }
+
+  int size() {
+    return analyzedFields.size();
+  }
+
+  //
+  // Private methods
+  //
+
+  private static void collectAnalyzedFields(Map<String, Property> properties, List<String> path, ImmutableSet.Builder<String> analyzedFields) {
+    properties.forEach((name, property) -> {
+      path.add(name);
+      if (property._kind() == Property.Kind.Object) {
+        collectAnalyzedFields(property.object().properties(), path, analyzedFields);
+      } else if (property._kind() == Property.Kind.Keyword) {
+        KeywordProperty keywordProperty = property.keyword();
+        if (keywordProperty.fields() != null && keywordProperty.fields().containsKey(ANALYZED)) {
+          addSubsequences(path, analyzedFields);
+        }
+      }
+      path.remove(path.size() - 1);
+    });
+  }
+
+  private static void addSubsequences(List<String> path, ImmutableSet.Builder<String> analyzedFields) {
+    int depth = path.size();
+    if (depth > MAX_SUBSEQUENCE_DEPTH) {
+      for (int i = 0; i < depth; i++) analyzedFields.add(String.join(".", path.subList(i, depth)));
+      return;
+    }
+
+    StringBuilder field = new StringBuilder();
+    for (int mask = 1; mask < (1 << depth); mask++) {
+      field.setLength(0);
+      for (int i = 0; i < depth; i++) {
+        if ((mask & (1 << i)) != 0) {
+          if (field.length() > 0) field.append('.');
+          field.append(path.get(i));
+        }
+      }
+      analyzedFields.add(field.toString());
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.client.Request;
+import org.obiba.es.mica.mapping.AbstractIndexConfiguration;
+import org.obiba.es.mica.support.IndexGenerations;
+import org.obiba.mica.spi.search.Indexer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Composable index templates, one per Mica index, matching all the generations of the index and holding the
+ * configured settings and the mappings of the index configurations, so that a generation is created with its
+ * mapping in a single call. The mappings depend on the taxonomies, the template of an index is registered again
+ * before a new generation is created.
+ */
+class ESIndexTemplates {
+
+  private static final Logger log = LoggerFactory.getLogger(ESIndexTemplates.class);
+
+  private static final String TEMPLATE_PREFIX = "mica-";
+
+  private static final int TEMPLATE_PRIORITY = 100;
+
+  static final List<String> MICA_INDICES = Arrays.asList(
+    Indexer.DRAFT_STUDY_INDEX, Indexer.PUBLISHED_STUDY_INDEX,
+    Indexer.DRAFT_NETWORK_INDEX, Indexer.PUBLISHED_NETWORK_INDEX,
+    Indexer.DRAFT_DATASET_INDEX, Indexer.PUBLISHED_DATASET_INDEX,
+    Indexer.PUBLISHED_VARIABLE_INDEX, Indexer.PUBLISHED_HVARIABLE_INDEX,
+    Indexer.DRAFT_PROJECT_INDEX, Indexer.PUBLISHED_PROJECT_INDEX,
+    Indexer.PERSON_INDEX,
+    Indexer.ATTACHMENT_DRAFT_INDEX, Indexer.ATTACHMENT_PUBLISHED_INDEX,
+    Indexer.TAXONOMY_INDEX, Indexer.VOCABULARY_INDEX, Indexer.TERM_INDEX);
+
+  private final ESSearchEngineService esSearchService;
+
+  private final Set<String> registered = ConcurrentHashMap.newKeySet();
+
+  ESIndexTemplates(ESSearchEngineService esSearchService) {
+    this.esSearchService = esSearchService;
+  }
+
+  /**
+   * Register the templates of all the Mica indices.
+   */
+  void registerAll() {
+    MICA_INDICES.forEach(this::register);
+    log.info("Registered {} index templates", registered.size());
+  }
+
+  /**
+   * Register (or replace) the template of a Mica index.
+   *
+   * @param indexName
+   * @return true if the generations of the index will be created from the template
+   */
+  boolean register(String indexName) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    if (!esSearchService.isIndexTemplates()) return false;
+
+    try {
+      ObjectNode mappings = getMappings(alias);
+      if (mappings == null) {
+        registered.remove(alias);
+        return false;
+      }
+
+      ObjectNode template = esSearchService.getObjectMapper().createObjectNode();
+      template.putArray("index_patterns").add(IndexGenerations.generationsPattern(alias));
+      template.put("priority", TEMPLATE_PRIORITY);
+      ObjectNode body = template.putObject("template");
+      body.set("settings", getSettings());
+      body.set("mappings", mappings);
+
+      Request request = new Request("PUT", "/_index_template/" + TEMPLATE_PREFIX + alias);
+      request.setJsonEntity(template.toString());
+      esSearchService.getRestClient().performRequest(request);
+      registered.add(alias);
+      return true;
+    } catch (Exception e) {
+      // the index configurations will put the mappings once the index is created
+      log.warn("Failed to register index template of {} - {}", alias, e);
+      registered.remove(alias);
+      return false;
+    }
+  }
+
+  /**
+   * @param indexName
+   * @return true if the template of the index was registered
+   */
+  boolean isRegistered(String indexName) {
+    return registered.contains(IndexGenerations.aliasOf(indexName));
+  }
+
+  /**
+   * Merge the mappings of the index configurations, in the order they would have been put.
+   *
+   * @param indexName
+   * @return the merged mappings, null if the index is not configured or if some configuration cannot be templated
+   * @throws IOException
+   */
+  @Nullable
+  ObjectNode getMappings(String indexName) throws IOException {
+    String alias = IndexGenerations.aliasOf(indexName);
+    ObjectNode mappings = null;
+    for (Indexer.IndexConfigurationListener listener : esSearchService.getIndexConfigurationListeners()) {
+      if (!(listener instanceof AbstractIndexConfiguration)) return null;
+      for (String mapping : ((AbstractIndexConfiguration) listener).getMappings(alias)) {
+        ObjectNode node = (ObjectNode) esSearchService.getObjectMapper().readTree(mapping);
+        mappings = mappings == null ? node : merge(mappings, node);
+      }
+    }
+    return mappings;
+  }
+
+  //
+  // Private methods
+  //
+
+  private ObjectNode getSettings() throws IOException {
+    ObjectNode settings = esSearchService.getObjectMapper().createObjectNode();
+    ObjectNode indexSettings = (ObjectNode) esSearchService.getObjectMapper().readTree(esSearchService.getIndexSettings());
+    indexSettings.put("number_of_shards", esSearchService.getNbShards());
+    indexSettings.put("number_of_replicas", esSearchService.getNbReplicas());
+    settings.set("index", indexSettings);
+    return settings;
+  }
+
+  /**
+   * Merge a mapping into another, as a put mapping would: objects are merged recursively, other values are replaced.
+   *
+   * @param target
+   * @param source
+   * @return the target
+   */
+  static ObjectNode merge(ObjectNode target, ObjectNode source) {
+    Iterator<Map.Entry<String, JsonNode>> fields = source.fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      JsonNode current = target.get(field.getKey());
+      if (current instanceof ObjectNode && field.getValue() instanceof ObjectNode) {
+        merge((ObjectNode) current, (ObjectNode) field.getValue());
+      } else {
+        target.set(field.getKey(), field.getValue());
+      }
+    }
+    return target;
+  }
+}
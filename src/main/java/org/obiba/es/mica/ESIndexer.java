@@ -10,14 +10,23 @@
 
 package org.obiba.es.mica;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.google.common.collect.Iterables;
-import com.jayway.jsonpath.Configuration;
-import com.jayway.jsonpath.JsonPath;
-import com.jayway.jsonpath.Option;
-import com.jayway.jsonpath.ReadContext;
-
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.obiba.es.mica.support.DocumentProperties;
+import org.obiba.es.mica.support.DocumentVersions;
+import org.obiba.es.mica.support.IndexGenerations;
+import org.obiba.es.mica.support.MappingChanges;
 import org.obiba.mica.spi.search.IndexFieldMapping;
 import org.obiba.mica.spi.search.Indexable;
 import org.obiba.mica.spi.search.Indexer;
@@ -26,32 +35,51 @@ import org.slf4j.LoggerFactory;
 import org.springframework.data.domain.Persistable;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
-import co.elastic.clients.elasticsearch._types.mapping.KeywordProperty;
-import co.elastic.clients.elasticsearch._types.mapping.Property;
-import co.elastic.clients.elasticsearch.core.BulkRequest;
-import co.elastic.clients.elasticsearch.core.BulkResponse;
-import co.elastic.clients.elasticsearch.core.DeleteByQueryRequest;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
 import co.elastic.clients.elasticsearch.core.DeleteRequest;
-import co.elastic.clients.elasticsearch.core.IndexRequest;
-import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryRequest;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryResponse;
+import co.elastic.clients.elasticsearch.core.UpdateRequest;
 import co.elastic.clients.elasticsearch.indices.CreateIndexRequest;
 import co.elastic.clients.elasticsearch.indices.CreateIndexResponse;
 import co.elastic.clients.elasticsearch.indices.DeleteIndexRequest;
 import co.elastic.clients.elasticsearch.indices.ElasticsearchIndicesClient;
 import co.elastic.clients.elasticsearch.indices.ExistsRequest;
+import co.elastic.clients.elasticsearch.indices.GetIndexRequest;
+import co.elastic.clients.elasticsearch.indices.GetIndexResponse;
 import co.elastic.clients.elasticsearch.indices.GetMappingRequest;
 import co.elastic.clients.elasticsearch.indices.GetMappingResponse;
 import co.elastic.clients.elasticsearch.indices.IndexSettings;
+import co.elastic.clients.elasticsearch.indices.UpdateAliasesRequest;
 import co.elastic.clients.elasticsearch.indices.get_mapping.IndexMappingRecord;
 import co.elastic.clients.json.JsonData;
 import co.elastic.clients.transport.endpoints.BooleanResponse;
 
 import javax.annotation.Nullable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 public class ESIndexer implements Indexer {
 
@@ -59,10 +87,54 @@ public class ESIndexer implements Indexer {
 
   private static final int MAX_SIZE = 10000;
 
+  private static final long TASK_TIMEOUT_HOURS = 24;
+
+  // number of documents of a bulk whose routings are looked up at once
+  private static final int ROUTING_LOOKUP_SIZE = 500;
+
   private final ESSearchEngineService esSearchService;
 
+  private final Set<String> existingIndices = ConcurrentHashMap.newKeySet();
+
+  private final ConcurrentMap<String, Object> indexLocks = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, IndexFieldMapping> fieldMappings = new ConcurrentHashMap<>();
+
+  // whether the indices have documents written with a routing, by alias
+  private final ConcurrentMap<String, Boolean> routedIndices = new ConcurrentHashMap<>();
+
+  private final ESWriteBehindBuffer writeBehindBuffer;
+
+  private final ESDeadLetterSpool deadLetterSpool;
+
+  private final ESReindexCheckpoints reindexCheckpoints;
+
+  private final ESContentHashes contentHashes;
+
+  private final ESIndexTemplates indexTemplates;
+
+  private final ESRebuildWrites rebuildWrites;
+
+  // fingerprints of the mappings and settings the indices were last remapped at startup with
+  private final File remapFolder;
+
+  private final AtomicLong staleWriteCount = new AtomicLong();
+
+  // updates the mappings and remaps the indices at startup, interrupted on stop
+  private volatile Thread startupThread;
+
   public ESIndexer(ESSearchEngineService esSearchService) {
     this.esSearchService = esSearchService;
+    this.deadLetterSpool = new ESDeadLetterSpool(esSearchService, new File(esSearchService.getWorkFolder(), "dead-letters"));
+    this.reindexCheckpoints = new ESReindexCheckpoints(esSearchService, new File(esSearchService.getWorkFolder(), "reindex-checkpoints"));
+    this.contentHashes = new ESContentHashes(new File(esSearchService.getWorkFolder(), "content-hashes"));
+    this.indexTemplates = new ESIndexTemplates(esSearchService);
+    this.rebuildWrites = new ESRebuildWrites(this::newBulkProcessor);
+    this.remapFolder = new File(esSearchService.getWorkFolder(), "remapped");
+    this.writeBehindBuffer = esSearchService.isWriteBehind()
+      ? new ESWriteBehindBuffer(esSearchService, this::newBulkProcessor, esSearchService.getWriteBehindMaxDocuments(),
+        esSearchService.getWriteBehindFlushInterval())
+      : null;
   }
 
   @Override
@@ -73,15 +145,7 @@ public class ESIndexer implements Indexer {
   @Override
   public void index(String indexName, Persistable<String> persistable, Persistable<String> parent) {
     log.debug("Indexing for indexName [{}] indexableObject [{}]", indexName, persistable);
-    createIndexIfNeeded(indexName);
-    IndexRequest<JsonData> indexRequest =
-      getIndexRequestBuilder(indexName, persistable.getId(), toJson(persistable), parent == null ? null : parent.getId());
-
-    try {
-      getClient().index(indexRequest);
-    } catch (IOException e) {
-      log.error("Failed to index {} in index {} - {}", persistable.getId(), indexName, e);
-    }
+    index(indexName, persistable.getId(), persistable, parent == null ? null : parent.getId());
   }
 
   @Override
@@ -92,27 +156,17 @@ public class ESIndexer implements Indexer {
   @Override
   public void index(String indexName, Indexable indexable, Indexable parent) {
     log.debug("Indexing for indexName [{}] indexableObject [{}]", indexName, indexable);
-    createIndexIfNeeded(indexName);
-    IndexRequest<JsonData> indexRequest =
-      getIndexRequestBuilder(indexName, indexable.getId(), toJson(indexable), parent == null ? null : parent.getId());
-
-    try {
-      getClient().index(indexRequest);
-    } catch (IOException e) {
-      log.error("Failed to index {} in index {} - {}", indexable.getId(), indexName, e);
-    }
+    index(indexName, indexable.getId(), indexable, parent == null ? null : parent.getId());
   }
 
   @Override
   synchronized public void reIndexAllIndexables(String indexName, Iterable<? extends Indexable> persistables) {
-    if (hasIndex(indexName)) dropIndex(indexName);
-    indexAllIndexables(indexName, persistables, null);
+    rebuildIndex(indexName, persistables, Indexable::getId);
   }
 
   @Override
   synchronized public void reindexAll(String indexName, Iterable<? extends Persistable<String>> persistables) {
-    if (hasIndex(indexName)) dropIndex(indexName);
-    indexAll(indexName, persistables, null);
+    rebuildIndex(indexName, persistables, Persistable::getId);
   }
 
   @Override
@@ -122,30 +176,10 @@ public class ESIndexer implements Indexer {
 
   @Override
   public void indexAll(String indexName, Iterable<? extends Persistable<String>> persistables, Persistable<String> parent) {
-
-    log.debug("Indexing all for indexName [{}] persistableObjectNumber [{}]", indexName, Iterables.size(persistables));
-
+    log.debug("Indexing all for indexName [{}]", indexName);
     createIndexIfNeeded(indexName);
-
-    BulkRequest.Builder br = new BulkRequest.Builder();
-
-    for (Persistable<String> persistable : persistables) {
-      br.operations(op -> op.index(idx -> idx.index(indexName).id(persistable.getId()).document(toJsonData(persistable))));
-    }
-
-    try {
-      BulkResponse bulkresponse = getClient().bulk(br.build());
-
-      if (bulkresponse.errors()) {
-        for (BulkResponseItem item: bulkresponse.items()) {
-          if (item.error() != null) {
-            log.error("Failed to bulk index {} [{}] - {} :: {}", item.id(), indexName, item.error().type(), item.error().reason());
-          }
-        }
-      }
-    } catch (IOException e) {
-      log.error("Failed to bulk index {} - {}", indexName, e);
-    }
+    flushPendingWrites(indexName);
+    bulkIndexPersistables(indexName, persistables, parent == null ? null : parent.getId());
   }
 
   @Override
@@ -155,80 +189,279 @@ public class ESIndexer implements Indexer {
 
   @Override
   public void indexAllIndexables(String indexName, Iterable<? extends Indexable> indexables, @Nullable String parentId) {
-    log.debug("Indexing all indexables for indexName [{}] persistableObjectNumber [{}]", indexName, Iterables.size(indexables));
+    log.debug("Indexing all indexables for indexName [{}]", indexName);
     createIndexIfNeeded(indexName);
+    flushPendingWrites(indexName);
+    bulkIndexIndexables(indexName, indexables, parentId);
+  }
+
+  @Override
+  public void delete(String indexName, Persistable<String> persistable) {
+    delete(indexName, persistable, null);
+  }
 
-    BulkRequest.Builder br = new BulkRequest.Builder();
+  /**
+   * Delete a document that was indexed with its parent.
+   *
+   * @param indexName
+   * @param persistable
+   * @param parent the parent the document was indexed with, if any
+   */
+  public void delete(String indexName, Persistable<String> persistable, @Nullable Persistable<String> parent) {
+    String id = persistable.getId();
+    delete(indexName, id, resolveRouting(indexName, id, persistable, parent == null ? null : parent.getId()));
+  }
 
-    for (Indexable indexable: indexables) {
+  @Override
+  public void delete(String indexName, Indexable indexable) {
+    delete(indexName, indexable, null);
+  }
 
-      br.operations(op -> op.index(idx -> idx.index(indexName).id(indexable.getId()).document(toJsonData(indexable))));
-    }
+  /**
+   * Delete a document that was indexed with its parent.
+   *
+   * @param indexName
+   * @param indexable
+   * @param parent the parent the document was indexed with, if any
+   */
+  public void delete(String indexName, Indexable indexable, @Nullable Indexable parent) {
+    String id = indexable.getId();
+    delete(indexName, id, resolveRouting(indexName, id, indexable, parent == null ? null : parent.getId()));
+  }
 
-    try {
-      BulkResponse bulkresponse = getClient().bulk(br.build());
+  /**
+   * Delete documents with bulk requests.
+   *
+   * @param indexName
+   * @param persistables
+   */
+  public void deleteAll(String indexName, Iterable<? extends Persistable<String>> persistables) {
+    deleteAll(indexName, persistables, null);
+  }
 
-      if (bulkresponse.errors()) {
-        for (BulkResponseItem item: bulkresponse.items()) {
-          if (item.error() != null) {
-            log.error("Failed to bulk index {} [{}] - {} :: {}", item.id(), indexName, item.error().type(), item.error().reason());
-          }
-        }
-      }
-    } catch (IOException e) {
-      log.error("Failed to bulk index {} - {}", indexName, e);
-    }
+  /**
+   * Delete documents that were indexed with their parent, with bulk requests.
+   *
+   * @param indexName
+   * @param persistables
+   * @param parent the parent the documents were indexed with, if any
+   */
+  public void deleteAll(String indexName, Iterable<? extends Persistable<String>> persistables, @Nullable Persistable<String> parent) {
+    bulkDelete(indexName, persistables, Persistable::getId, parent == null ? null : parent.getId());
+  }
+
+  /**
+   * Delete documents with bulk requests.
+   *
+   * @param indexName
+   * @param indexables
+   */
+  public void deleteAllIndexables(String indexName, Iterable<? extends Indexable> indexables) {
+    deleteAllIndexables(indexName, indexables, null);
+  }
+
+  /**
+   * Delete documents that were indexed with their parent, with bulk requests.
+   *
+   * @param indexName
+   * @param indexables
+   * @param parentId the id of the parent the documents were indexed with, if any
+   */
+  public void deleteAllIndexables(String indexName, Iterable<? extends Indexable> indexables, @Nullable String parentId) {
+    bulkDelete(indexName, indexables, Indexable::getId, parentId);
   }
 
   @Override
-  public void delete(String indexName, Persistable<String> persistable) {
-    createIndexIfNeeded(indexName);
-    try {
-      getClient().delete(DeleteRequest.of(r -> r.index(indexName).id(persistable.getId())));
-    } catch (IOException e) {
-      log.error("Failed to delete document in index {} - {}", persistable.getId(), indexName, e);
-    }
+  public void delete(String indexName, String[] types, Map.Entry<String, String> termQuery) {
+    deleteByQuery(indexName, termQuery);
   }
 
   @Override
-  public void delete(String indexName, Indexable indexable) {
-    createIndexIfNeeded(indexName);
+  public void delete(String indexName, String type, Map.Entry<String, String> termQuery) {
+    delete(indexName, type != null ? new String[]{type} : null, termQuery);
+  }
+
+  /**
+   * Delete the documents matching a term without waiting: the deletion runs in the background as a task of the
+   * cluster, sliced by shard and throttled to the configured number of requests per second. The index is refreshed
+   * before, the documents written so far are deleted. Documents matching the term that are written again before the
+   * task completes may be deleted too, the task is to be awaited before writing them.
+   *
+   * @param indexName
+   * @param termQuery field name and value of the documents to delete
+   * @return the deletion task, null if the index does not exist or the deletion could not be submitted
+   */
+  @Nullable
+  public ESTask deleteByQuery(String indexName, Map.Entry<String, String> termQuery) {
+    if (!hasIndex(indexName)) return null;
+    rebuildWrites.operation(indexName, () -> deleteByQuery(indexName, termQuery));
+    flushPendingWrites(indexName);
+    // the deletion only sees the documents visible to searches
+    refresh(indexName);
+    // the deleted documents are not known
+    contentHashes.clear(indexName);
+
+    ObjectNode body = esSearchService.getObjectMapper().createObjectNode();
+    body.putObject("query").putObject("term").put(termQuery.getKey(), termQuery.getValue());
+    Request request = new Request("POST", "/" + indexName + "/_delete_by_query");
+    request.addParameter("slices", "auto");
+    request.addParameter("conflicts", "proceed");
+    request.addParameter("wait_for_completion", "false");
+    request.addParameter("requests_per_second", esSearchService.getDeleteByQueryRequestsPerSecond());
+    request.setJsonEntity(body.toString());
+
+    ESTask task = submitTask(indexName, request);
+    if (task != null) log.debug("Deleting documents of index {} where {} is {} in task {}", indexName, termQuery.getKey(), termQuery.getValue(), task);
+    return task;
+  }
+
+  /**
+   * Copy documents from an index to another without waiting, when publishing draft documents for instance: the copy
+   * runs in the background as a task of the cluster, sliced by shard and throttled to the configured number of
+   * requests per second. The documents are copied as they are in the source index, with their routing.
+   *
+   * @param sourceIndexName
+   * @param targetIndexName
+   * @param ids identifiers of the documents to copy
+   * @return the copy task, null if the source index does not exist or the copy could not be submitted
+   */
+  @Nullable
+  public ESTask copy(String sourceIndexName, String targetIndexName, Collection<String> ids) {
+    rebuildWrites.operation(targetIndexName, () -> copy(sourceIndexName, targetIndexName, ids));
+    ObjectNode query = esSearchService.getObjectMapper().createObjectNode();
+    ArrayNode values = query.putObject("ids").putArray("values");
+    ids.forEach(values::add);
+    ESTask task = copy(sourceIndexName, targetIndexName, query);
+    // the copied documents were not hashed
+    if (task != null) ids.forEach(id -> contentHashes.remove(targetIndexName, id));
+    return task;
+  }
+
+  /**
+   * Copy the documents matching a term from an index to another without waiting.
+   *
+   * @param sourceIndexName
+   * @param targetIndexName
+   * @param termQuery field name and value of the documents to copy
+   * @return the copy task, null if the source index does not exist or the copy could not be submitted
+   * @see #copy(String, String, Collection)
+   */
+  @Nullable
+  public ESTask copy(String sourceIndexName, String targetIndexName, Map.Entry<String, String> termQuery) {
+    rebuildWrites.operation(targetIndexName, () -> copy(sourceIndexName, targetIndexName, termQuery));
+    ObjectNode query = esSearchService.getObjectMapper().createObjectNode();
+    query.putObject("term").put(termQuery.getKey(), termQuery.getValue());
+    ESTask task = copy(sourceIndexName, targetIndexName, query);
+    // the copied documents are not known
+    if (task != null) contentHashes.clear(targetIndexName);
+    return task;
+  }
+
+  /**
+   * Update some fields of a document, the other fields are left unchanged.
+   *
+   * @param indexName
+   * @param id
+   * @param fields partial document, nested objects are merged
+   */
+  public void update(String indexName, String id, Map<String, Object> fields) {
+    update(indexName, id, fields, null);
+  }
+
+  /**
+   * Update some fields of a document, the other fields are left unchanged. An update that fails because the cluster
+   * is unavailable is spooled, the other failures are thrown.
+   *
+   * @param indexName
+   * @param id
+   * @param fields partial document, nested objects are merged
+   * @param routing the routing of the document, looked up if null and the index has routed documents
+   */
+  public void update(String indexName, String id, Map<String, Object> fields, @Nullable String routing) {
+    if (!hasIndex(indexName)) return;
+    rebuildWrites.operation(indexName, () -> update(indexName, id, fields, routing));
+    // a buffered write of the document must not overwrite the update
+    flushPendingWrites(indexName);
+    contentHashes.remove(indexName, id);
+    String documentRouting = routing == null ? resolveRouting(indexName, id, null, null) : routing;
+
+    UpdateRequest<Object, Map<String, Object>> request = UpdateRequest.of(r -> r
+      .index(indexName)
+      .id(id)
+      .routing(documentRouting)
+      .doc(fields)
+      .retryOnConflict(3));
     try {
-      getClient().delete(DeleteRequest.of(r -> r.index(indexName).id(indexable.getId())));
+      getClient().update(request, Object.class);
+    } catch (ElasticsearchException e) {
+      if (isIndexNotFound(e)) {
+        invalidateIndex(indexName);
+        return;
+      }
+      if (!isRetryable(e)) throw e;
+      log.error("Failed to update document {} in index {} - {}", id, indexName, e);
+      deadLetterSpool.add(indexName, "update", id, documentRouting, Collections.singletonMap("doc", fields));
     } catch (IOException e) {
-      log.error("Failed to delete document in index {} - {}", indexable.getId(), indexName, e);
+      log.error("Failed to update document {} in index {} - {}", id, indexName, e);
+      deadLetterSpool.add(indexName, "update", id, documentRouting, Collections.singletonMap("doc", fields));
     }
   }
 
-  @Override
-  public void delete(String indexName, String[] types, Map.Entry<String, String> termQuery) {
-    if (!hasIndex(indexName)) return;
-
-    DeleteByQueryRequest deleteRequest = DeleteByQueryRequest.of(r -> r
+  /**
+   * Update the documents matching a term with a painless script. An update that fails because the cluster is
+   * unavailable is spooled, the other failures are thrown.
+   *
+   * @param indexName
+   * @param termQuery field name and value of the documents to update
+   * @param script painless script source, reading its parameters from "params"
+   * @param params script parameters, passed separately so that the compiled script is reused
+   * @return the number of documents updated
+   */
+  public long updateByQuery(String indexName, Map.Entry<String, String> termQuery, String script, Map<String, Object> params) {
+    if (!hasIndex(indexName)) return 0;
+    rebuildWrites.operation(indexName, () -> updateByQuery(indexName, termQuery, script, params));
+    flushPendingWrites(indexName);
+    // the updated documents are not known
+    contentHashes.clear(indexName);
+
+    Map<String, JsonData> scriptParams = params.entrySet().stream()
+      .collect(Collectors.toMap(Map.Entry::getKey, entry -> JsonData.of(entry.getValue())));
+    UpdateByQueryRequest request = UpdateByQueryRequest.of(r -> r
       .index(indexName)
       .query(q -> q
         .term(t -> t
           .field(termQuery.getKey()).value(termQuery.getValue())
         )
       )
-    );
-
+      .script(s -> s.inline(i -> i.lang("painless").source(script).params(scriptParams)))
+      .conflicts(Conflicts.Proceed));
     try {
-      getClient().deleteByQuery(deleteRequest);
+      UpdateByQueryResponse response = getClient().updateByQuery(request);
+      if (response.versionConflicts() != null && response.versionConflicts() > 0) {
+        log.warn("{} documents of index {} were modified while being updated by query", response.versionConflicts(), indexName);
+      }
+      return response.updated() == null ? 0 : response.updated();
+    } catch (ElasticsearchException e) {
+      if (isIndexNotFound(e)) {
+        invalidateIndex(indexName);
+        return 0;
+      }
+      if (!isRetryable(e)) throw e;
+      log.error("Failed to update documents by query in index {} - {}", indexName, e);
+      spoolUpdateByQuery(indexName, termQuery, script, params);
     } catch (IOException e) {
-      log.error("Failed to delete document by query in index {} - {}", indexName, e);
+      log.error("Failed to update documents by query in index {} - {}", indexName, e);
+      spoolUpdateByQuery(indexName, termQuery, script, params);
     }
-  }
-
-  @Override
-  public void delete(String indexName, String type, Map.Entry<String, String> termQuery) {
-    delete(indexName, type != null ? new String[]{type} : null, termQuery);
+    return 0;
   }
 
   @Override
   public boolean hasIndex(String indexName) {
+    if (existingIndices.contains(indexName)) return true;
     try {
       BooleanResponse exists = getClient().indices().exists(ExistsRequest.of(r -> r.index(indexName)));
+      if (exists.value()) existingIndices.add(indexName);
       return exists.value();
     } catch (IOException e) {
       log.error("Failed to find index {} - {}", indexName, e);
@@ -239,149 +472,1327 @@ public class ESIndexer implements Indexer {
 
   @Override
   public void dropIndex(String indexName) {
+    if (writeBehindBuffer != null) writeBehindBuffer.discard(indexName);
+    existingIndices.remove(indexName);
+    fieldMappings.remove(indexName);
+    routedIndices.remove(indexName);
+    reindexCheckpoints.clear(indexName);
+    contentHashes.clear(indexName);
+    deadLetterSpool.discard(indexName);
+    // an alias cannot be deleted by name, its physical indices are
+    List<String> indices = Lists.newArrayList(getPhysicalIndices(indexName));
+    if (indices.isEmpty()) return;
     try {
-      getClient().indices().delete(DeleteIndexRequest.of(r -> r.index(indexName)));
+      getClient().indices().delete(DeleteIndexRequest.of(r -> r.index(indices)));
     } catch (IOException e) {
       log.error("Failed to drop index index {} - {}", indexName, e);
     }
   }
 
+  /**
+   * Field mappings are fetched once per index and kept until the index is created, dropped or switched
+   * to a new generation.
+   */
   @Override
   public IndexFieldMapping getIndexfieldMapping(String indexName, String type) {
-    return new IndexFieldMappingImpl(hasIndex(indexName) ? getContext(indexName, type) : null);
+    IndexFieldMapping mapping = fieldMappings.get(indexName);
+    if (mapping != null) return mapping;
+
+    mapping = hasIndex(indexName) ? getFieldMapping(indexName) : null;
+    // do not cache the mapping of an index that is not there yet
+    if (mapping == null) return ESIndexFieldMapping.empty();
+
+    IndexFieldMapping cached = fieldMappings.putIfAbsent(indexName, mapping);
+    return cached == null ? mapping : cached;
+  }
+
+  /**
+   * Send again the write operations that failed, for all indices.
+   *
+   * @return the number of operations sent
+   */
+  public int replayDeadLetters() {
+    int count = 0;
+    for (String indexName : deadLetterSpool.getIndexNames()) {
+      count += replayDeadLetters(indexName);
+    }
+    return count;
+  }
+
+  /**
+   * Send again the write operations that failed for an index, the ones failing again are spooled again.
+   *
+   * @param indexName
+   * @return the number of operations sent
+   */
+  public int replayDeadLetters(String indexName) {
+    try {
+      // a bulk request would create a missing index without its mappings
+      createIndexIfNeeded(indexName);
+      flushPendingWrites(indexName);
+      return deadLetterSpool.replay(indexName, this::newBulkProcessor, operation -> replayUpdateByQuery(indexName, operation));
+    } catch (Exception e) {
+      log.error("Failed to replay failed operations of index {} - {}", indexName, e);
+      return 0;
+    }
+  }
+
+  /**
+   * Bring the mapping of an index up to date with its index configurations, after a taxonomy change for instance.
+   * New fields are added to the mapping of the index. When the mapping of an existing field changed, the documents
+   * are copied by the cluster into a new generation of the index having the new mapping.
+   *
+   * @param indexName
+   * @return the change that was applied
+   */
+  public MappingChanges.Change updateMapping(String indexName) {
+    if (!hasIndex(indexName)) return MappingChanges.Change.NONE;
+    // new generations will be created with the new mapping
+    indexTemplates.register(indexName);
+    try {
+      ObjectNode expected = indexTemplates.getMappings(indexName);
+      JsonNode current = getLiveMapping(indexName);
+      if (expected == null || current == null) return MappingChanges.Change.NONE;
+
+      MappingChanges.Change change = MappingChanges.compare(current, expected);
+      if (change == MappingChanges.Change.ADDITIVE && !putMapping(indexName, expected)) {
+        change = MappingChanges.Change.INCOMPATIBLE;
+      }
+      if (change == MappingChanges.Change.INCOMPATIBLE) {
+        log.info("Mapping of index {} changed, copying its documents into a new generation", indexName);
+        if (!copyToNextGeneration(indexName)) return MappingChanges.Change.NONE;
+      }
+      if (change != MappingChanges.Change.NONE) log.info("Mapping of index {} updated ({})", indexName, change);
+      return change;
+    } catch (IOException e) {
+      log.error("Failed to update mapping of index {} - {}", indexName, e);
+    }
+    return MappingChanges.Change.NONE;
+  }
+
+  /**
+   * Bring the mappings of all the existing Mica indices up to date.
+   */
+  public void updateMappings() {
+    ESIndexTemplates.MICA_INDICES.forEach(this::updateMapping);
+  }
+
+  /**
+   * Rebuild an index with the current settings and mappings from its own documents, after an upgrade changed how
+   * the documents are mapped or analyzed: a new generation is filled by the cluster from the current one and then
+   * replaces it. Unlike a full reindex, the documents are not sent again by Mica.
+   *
+   * @param indexName
+   * @return true if the index points to the new generation
+   */
+  public boolean remap(String indexName) {
+    if (!hasIndex(indexName)) return false;
+    log.info("Remapping index {}", indexName);
+    // new generations will be created with the current mapping
+    indexTemplates.register(indexName);
+    return copyToNextGeneration(indexName);
+  }
+
+  /**
+   * Bring the mappings of the Mica indices up to date and remap indices in the background, at startup, so that the
+   * copies into new generations do not delay the startup. An index already remapped with the same mappings and
+   * settings is skipped, so that the remap is not repeated on every restart.
+   *
+   * @param updateMappings whether the mappings of all the Mica indices are brought up to date
+   * @param remapIndexNames names of the indices to remap
+   */
+  public void maintainOnStart(boolean updateMappings, List<String> remapIndexNames) {
+    if (!updateMappings && remapIndexNames.isEmpty()) return;
+    Thread thread = new Thread(() -> {
+      if (updateMappings) {
+        for (String indexName : ESIndexTemplates.MICA_INDICES) {
+          if (Thread.currentThread().isInterrupted()) return;
+          updateMappingSafely(indexName);
+        }
+      }
+      for (String indexName : remapIndexNames) {
+        if (Thread.currentThread().isInterrupted()) return;
+        remapIfChanged(indexName);
+      }
+    }, "mica-es-startup");
+    thread.setDaemon(true);
+    startupThread = thread;
+    thread.start();
+  }
+
+  /**
+   * @return the number of document writes ignored because a more recent version of the document was indexed, when
+   * external versioning is enabled
+   */
+  public long getStaleWriteCount() {
+    return staleWriteCount.get();
+  }
+
+  /**
+   * Register the index templates from which the Mica indices are created.
+   */
+  void registerIndexTemplates() {
+    indexTemplates.registerAll();
+  }
+
+  /**
+   * Lift the write blocks left on the Mica indices by a copy into a new generation that did not complete, the
+   * process was killed during the copy for instance.
+   */
+  void clearWriteBlocks() {
+    Request request = new Request("PUT", "/" + String.join(",", ESIndexTemplates.MICA_INDICES) + "/_settings");
+    request.addParameter("ignore_unavailable", "true");
+    request.addParameter("allow_no_indices", "true");
+    request.setJsonEntity("{\"index.blocks.write\":null}");
+    try {
+      esSearchService.getRestClient().performRequest(request);
+    } catch (ResponseException e) {
+      // none of the indices exists yet
+      if (e.getResponse().getStatusLine().getStatusCode() != 404) log.error("Failed to clear write blocks of the indices - {}", e);
+    } catch (IOException e) {
+      log.error("Failed to clear write blocks of the indices - {}", e);
+    }
+  }
+
+  /**
+   * Stop the mapping update or remap in progress, send the pending writes, if any, and stop buffering.
+   */
+  void stop() {
+    Thread thread = startupThread;
+    if (thread != null) {
+      // the copy in progress is abandoned and its write block lifted, while the client is still open
+      thread.interrupt();
+      try {
+        thread.join(TimeUnit.MINUTES.toMillis(1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (thread.isAlive()) log.warn("Mapping update or remap of the indices did not stop in time");
+    }
+    if (writeBehindBuffer != null) writeBehindBuffer.close();
+    contentHashes.save();
   }
 
   //
   // Private methods
   //
 
-  private ReadContext getContext(String indexName, String indexType) {
+  /**
+   * Pending single document writes must be applied before an operation that affects the whole index.
+   *
+   * @param indexName
+   */
+  private void flushPendingWrites(String indexName) {
+    if (writeBehindBuffer != null) writeBehindBuffer.flush(indexName);
+  }
+
+  private ESIndexFieldMapping getFieldMapping(String indexName) {
     try {
       GetMappingResponse result = getClient().indices().getMapping(GetMappingRequest.of(r -> r.index(indexName)));
-      Map<String, IndexMappingRecord> mappings = result.result();
-      IndexMappingRecord record = mappings.get(indexName);
+      // mappings are keyed by the physical index name, not by the alias
+      IndexMappingRecord record = result.result().values().stream().findFirst().orElse(null);
+      if (record == null) return null;
+
+      return ESIndexFieldMapping.of(record.mappings().properties());
+    } catch (ElasticsearchException e) {
+      if (!isIndexNotFound(e)) throw e;
+      invalidateIndex(indexName);
+    } catch (IOException e) {
+      log.error("Failed to get mapping of index {} - {}", indexName, e);
+    }
+
+    return null;
+  }
+
+  private ElasticsearchClient getClient() {
+    return esSearchService.getClient();
+  }
+
+  private void bulkIndexPersistables(String indexName, Iterable<? extends Persistable<String>> persistables, @Nullable String parentId) {
+    bulkIndexIfChanged(indexName, persistables, Persistable::getId, parentId);
+  }
+
+  private void bulkIndexIndexables(String indexName, Iterable<? extends Indexable> indexables, @Nullable String parentId) {
+    bulkIndexIfChanged(indexName, indexables, Indexable::getId, parentId);
+  }
+
+  private <T> void bulkDelete(String indexName, Iterable<? extends T> documents, Function<T, String> idOf, @Nullable String parentId) {
+    if (!hasIndex(indexName)) return;
+    // a buffered write must not bring a deleted document back
+    flushPendingWrites(indexName);
+    try (ESBulkProcessor bulkProcessor = newBulkProcessor(indexName)) {
+      List<T> batch = new ArrayList<>();
+      for (T document : documents) {
+        batch.add(document);
+        if (batch.size() >= ROUTING_LOOKUP_SIZE) bulkDelete(bulkProcessor, indexName, batch, idOf, parentId);
+      }
+      bulkDelete(bulkProcessor, indexName, batch, idOf, parentId);
+    }
+  }
+
+  private <T> void bulkDelete(ESBulkProcessor bulkProcessor, String indexName, List<T> batch, Function<T, String> idOf,
+                              @Nullable String parentId) {
+    Map<String, String> routings = lookupRoutings(indexName, batch, idOf, parentId);
+    for (T document : batch) {
+      String id = idOf.apply(document);
+      String routing = getRouting(indexName, document, parentId);
+      if (routing == null) routing = routings.get(id);
+      contentHashes.remove(indexName, id);
+      rebuildWrites.delete(indexName, id, routing);
+      bulkProcessor.delete(id, routing);
+    }
+    batch.clear();
+  }
+
+  /**
+   * Bulk index documents, skipping the ones that did not change since they were last bulk indexed when incremental
+   * indexing is enabled.
+   *
+   * @param indexName
+   * @param documents
+   * @param idOf
+   * @param parentId
+   */
+  private <T> void bulkIndexIfChanged(String indexName, Iterable<? extends T> documents, Function<T, String> idOf,
+                                      @Nullable String parentId) {
+    if (!esSearchService.isIncrementalIndexing()) {
+      bulkIndex(indexName, documents, idOf, parentId, null);
+      return;
+    }
+    ESBulkProcessor bulkProcessor = bulkIndex(indexName, documents, idOf, parentId, contentHashes.get(indexName));
+    contentHashes.update(indexName, bulkProcessor.getIndexedHashes());
+  }
+
+  /**
+   * Bulk index documents.
+   *
+   * @param indexName
+   * @param documents
+   * @param idOf
+   * @param parentId routing of the documents, unless they are routed by one of their properties
+   * @param previousHashes content hashes of the documents previously indexed, null to disable content hashing
+   * @return the closed bulk processor, for its counts and the content hashes of the documents indexed
+   */
+  private <T> ESBulkProcessor bulkIndex(String indexName, Iterable<? extends T> documents, Function<T, String> idOf,
+                                          @Nullable String parentId, @Nullable Map<String, Long> previousHashes) {
+    ESBulkProcessor bulkProcessor = newBulkProcessor(indexName);
+    if (parentId != null) routedIndices.put(IndexGenerations.aliasOf(indexName), true);
+    try (bulkProcessor) {
+      if (previousHashes != null) bulkProcessor.setContentHashing(previousHashes);
+      List<T> batch = new ArrayList<>();
+      for (T document : documents) {
+        batch.add(document);
+        if (batch.size() >= ROUTING_LOOKUP_SIZE) bulkIndex(bulkProcessor, indexName, indexName, batch, idOf, parentId);
+      }
+      bulkIndex(bulkProcessor, indexName, indexName, batch, idOf, parentId);
+    }
+    if (previousHashes != null) {
+      log.info("Bulk indexed {} new and {} updated documents in index {}, {} unchanged documents skipped",
+        bulkProcessor.getNewCount(), bulkProcessor.getUpdatedCount(), indexName, bulkProcessor.getUnchangedCount());
+    }
+    return bulkProcessor;
+  }
+
+  /**
+   * Add documents to a bulk. The documents without a routing of their own are written with the routing they are
+   * currently indexed with, if any, so that they are not indexed twice.
+   *
+   * @param bulkProcessor
+   * @param indexName the index the documents are written in
+   * @param currentIndexName the index the documents are currently in
+   * @param batch documents to add, cleared once added
+   * @param idOf
+   * @param parentId
+   */
+  private <T> void bulkIndex(ESBulkProcessor bulkProcessor, String indexName, String currentIndexName, List<T> batch,
+                             Function<T, String> idOf, @Nullable String parentId) {
+    Map<String, String> routings = lookupRoutings(currentIndexName, batch, idOf, parentId);
+    for (T document : batch) {
+      String id = idOf.apply(document);
+      String routing = getRouting(indexName, document, parentId);
+      if (routing == null) routing = routings.get(id);
+      rebuildWrites.index(indexName, id, routing, document);
+      bulkProcessor.index(id, routing, document);
+    }
+    batch.clear();
+  }
+
+  private ESBulkProcessor newBulkProcessor(String indexName) {
+    ESBulkProcessor bulkProcessor = new ESBulkProcessor(esSearchService, indexName, () -> invalidateIndex(indexName),
+      failures -> onBulkFailures(indexName, failures));
+    bulkProcessor.setStaleWriteListener(staleWriteCount::addAndGet);
+    return bulkProcessor;
+  }
+
+  /**
+   * Log the operations that could not be applied and spool the ones that failed because the cluster was unavailable,
+   * the others would fail again.
+   *
+   * @param indexName
+   * @param failures
+   */
+  private void onBulkFailures(String indexName, List<ESBulkProcessor.Failure> failures) {
+    log.error("{} documents could not be written in index {}", failures.size(), indexName);
+    for (ESBulkProcessor.Failure failure : failures) {
+      log.error("Failed to bulk {} {} [{}] - {} :: {}", failure.getOperation() == null ? "write" : failure.getOperation(),
+        failure.getId(), indexName, failure.getType(), failure.getReason());
+    }
+    deadLetterSpool.add(indexName, failures.stream()
+      .filter(failure -> failure.getStatus() == 0 || ESBulkProcessor.isRetryable(failure.getStatus(), failure.getType()))
+      .collect(Collectors.toList()));
+  }
 
-      Map<String, Property> mappingProperties = record.mappings().properties();
+  private void spoolUpdateByQuery(String indexName, Map.Entry<String, String> termQuery, String script, Map<String, Object> params) {
+    ObjectNode operation = esSearchService.getObjectMapper().createObjectNode();
+    operation.putObject("query").putObject("term").put(termQuery.getKey(), termQuery.getValue());
+    operation.putObject("script")
+      .put("source", script)
+      .set("params", esSearchService.getObjectMapper().valueToTree(params));
+    deadLetterSpool.addUpdateByQuery(indexName, operation);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void replayUpdateByQuery(String indexName, JsonNode operation) {
+    Map.Entry<String, JsonNode> term = operation.path("query").path("term").fields().next();
+    Map<String, Object> params = esSearchService.getObjectMapper().convertValue(operation.at("/script/params"), Map.class);
+    updateByQuery(indexName, Map.entry(term.getKey(), term.getValue().asText()), operation.at("/script/source").asText(),
+      params == null ? Collections.emptyMap() : params);
+  }
 
-      String recordAsString = Configuration.defaultConfiguration().jsonProvider().toJson(processMappingProperties(mappingProperties));
-      return JsonPath.using(Configuration.defaultConfiguration().addOptions(Option.ALWAYS_RETURN_LIST)).parse(recordAsString);
+  private void index(String indexName, String id, Object document, @Nullable String parentId) {
+    createIndexIfNeeded(indexName);
+    String routing = resolveRouting(indexName, id, document, parentId);
+    contentHashes.remove(indexName, id);
+    rebuildWrites.index(indexName, id, routing, document);
+    if (writeBehindBuffer != null) {
+      writeBehindBuffer.index(indexName, id, routing, document);
+      return;
+    }
+    try {
+      try {
+        esSearchService.getRestClient().performRequest(getIndexRequest(indexName, id, document, routing));
+      } catch (ResponseException e) {
+        if (!"index_not_found_exception".equals(getErrorType(e))) throw e;
+        // index was deleted behind our back
+        invalidateIndex(indexName);
+        createIndexIfNeeded(indexName);
+        esSearchService.getRestClient().performRequest(getIndexRequest(indexName, id, document, routing));
+      }
+    } catch (ResponseException e) {
+      int status = e.getResponse().getStatusLine().getStatusCode();
+      if (status == 409) {
+        // the index has a more recent version of the document
+        staleWriteCount.incrementAndGet();
+        log.debug("Stale document {} not indexed in index {}", id, indexName);
+        return;
+      }
+      String errorType = getErrorType(e);
+      if (!ESBulkProcessor.isRetryable(status, errorType)) {
+        throw new RuntimeException("Failed to index " + id + " in index " + indexName + " - " + errorType, e);
+      }
+      log.error("Failed to index {} in index {} - {}", id, indexName, e);
+      deadLetterSpool.add(indexName, "index", id, routing, document);
     } catch (IOException e) {
-      log.error("Failed to drop index index {} - {}", indexName, e);
+      log.error("Failed to index {} in index {} - {}", id, indexName, e);
+      deadLetterSpool.add(indexName, "index", id, routing, document);
     }
+  }
 
+  private void delete(String indexName, String id, @Nullable String routing) {
+    if (!hasIndex(indexName)) return;
+    contentHashes.remove(indexName, id);
+    rebuildWrites.delete(indexName, id, routing);
+    if (writeBehindBuffer != null) {
+      writeBehindBuffer.delete(indexName, id, routing);
+      return;
+    }
+    try {
+      getClient().delete(DeleteRequest.of(r -> r.index(indexName).id(id).routing(routing)));
+    } catch (ElasticsearchException e) {
+      if (isIndexNotFound(e)) {
+        invalidateIndex(indexName);
+      } else if (isRetryable(e)) {
+        log.error("Failed to delete document {} in index {} - {}", id, indexName, e);
+        deadLetterSpool.add(indexName, "delete", id, routing, null);
+      } else {
+        throw e;
+      }
+    } catch (IOException e) {
+      log.error("Failed to delete document {} in index {} - {}", id, indexName, e);
+      deadLetterSpool.add(indexName, "delete", id, routing, null);
+    }
+  }
+
+  /**
+   * Submit an operation to be run in the background by the cluster.
+   *
+   * @param indexName the index the operation applies to
+   * @param request a request with wait_for_completion=false
+   * @return the task, null if the operation could not be submitted
+   */
+  @Nullable
+  private ESTask submitTask(String indexName, Request request) {
+    try {
+      Response response = esSearchService.getRestClient().performRequest(request);
+      try (InputStream content = response.getEntity().getContent()) {
+        return new ESTask(esSearchService, esSearchService.getObjectMapper().readTree(content).path("task").asText());
+      }
+    } catch (ResponseException e) {
+      if (e.getResponse().getStatusLine().getStatusCode() == 404) invalidateIndex(indexName);
+      else log.error("Failed to submit {} on index {} - {}", request.getEndpoint(), indexName, e);
+    } catch (IOException e) {
+      log.error("Failed to submit {} on index {} - {}", request.getEndpoint(), indexName, e);
+    }
     return null;
   }
 
-  private Map<String, Object> processMappingProperties(Map<String, Property> mappingProperties) {
-    Map<String, Object> result = new HashMap<>();
+  /**
+   * @param indexName
+   * @return the mapping of the current generation of the index, null if it could not be retrieved
+   * @throws IOException
+   */
+  @Nullable
+  private JsonNode getLiveMapping(String indexName) throws IOException {
+    Response response = esSearchService.getRestClient().performRequest(new Request("GET", "/" + indexName + "/_mapping"));
+    try (InputStream content = response.getEntity().getContent()) {
+      // keyed by the physical index name
+      Iterator<JsonNode> indices = esSearchService.getObjectMapper().readTree(content).elements();
+      return indices.hasNext() ? indices.next().path("mappings") : null;
+    }
+  }
+
+  /**
+   * @param indexName
+   * @param mapping
+   * @return false if the mapping was rejected as incompatible with the current one
+   * @throws IOException
+   */
+  private boolean putMapping(String indexName, ObjectNode mapping) throws IOException {
+    Request request = new Request("PUT", "/" + indexName + "/_mapping");
+    request.setJsonEntity(mapping.toString());
+    try {
+      esSearchService.getRestClient().performRequest(request);
+      fieldMappings.remove(indexName);
+      return true;
+    } catch (ResponseException e) {
+      if (e.getResponse().getStatusLine().getStatusCode() != 400) throw e;
+      log.warn("Mapping of index {} cannot be updated in place - {}", indexName, e.getMessage());
+      return false;
+    }
+  }
+
+  private void updateMappingSafely(String indexName) {
+    try {
+      updateMapping(indexName);
+    } catch (Exception e) {
+      log.error("Failed to update mapping of index {} - {}", indexName, e);
+    }
+  }
 
-    mappingProperties.forEach((key, property) -> {
-      if (property._kind() == Property.Kind.Object) {
-        Map<String, Object> anythingObjectRelated = new HashMap<>();
-        anythingObjectRelated.put("properties", processMappingProperties(property.object().properties()));
+  private void remapIfChanged(String indexName) {
+    try {
+      String fingerprint = getMappingFingerprint(indexName);
+      File file = new File(remapFolder, IndexGenerations.aliasOf(indexName));
+      if (file.exists() && fingerprint.equals(Files.readString(file.toPath(), StandardCharsets.UTF_8))) {
+        log.info("Index {} was already remapped with its current mapping", indexName);
+        return;
+      }
+      if (!remap(indexName)) return;
+      if (!remapFolder.exists() && !remapFolder.mkdirs()) throw new IOException("Cannot create folder " + remapFolder);
+      Files.writeString(file.toPath(), fingerprint, StandardCharsets.UTF_8);
+    } catch (Exception e) {
+      log.error("Failed to remap index {} - {}", indexName, e);
+    }
+  }
 
-        result.put(key, anythingObjectRelated);
-      } else if (property._kind() == Property.Kind.Keyword) {
-        KeywordProperty keywordProperty = property.keyword();
+  /**
+   * @param indexName
+   * @return a hash of what a new generation of the index is created with
+   * @throws IOException
+   */
+  private String getMappingFingerprint(String indexName) throws IOException {
+    ObjectNode mappings = indexTemplates.getMappings(indexName);
+    String created = (mappings == null ? "" : mappings.toString()) + esSearchService.getIndexSettings()
+      + esSearchService.getNbShards();
+    return Hashing.murmur3_128().hashString(created, StandardCharsets.UTF_8).toString();
+  }
 
-        Map<String, Object> anythingKeywordRelated = new HashMap<>();
-        anythingKeywordRelated.put("type", property._kind().jsonValue());
+  /**
+   * Copy the documents of an index into a new generation, created with the current index template, and make it the
+   * current one. The copy is run by the cluster, sliced by shard. Writes to the index are blocked meanwhile, otherwise
+   * they would be lost with the current generation: they are retried, or spooled and replayed once the index points
+   * to the new generation. The block is lifted whatever happens, an interrupted copy included.
+   *
+   * @param indexName
+   * @return true if the index points to the new generation
+   */
+  private boolean copyToNextGeneration(String indexName) {
+    synchronized (getIndexLock(indexName)) {
+      flushPendingWrites(indexName);
+      String generation = createNextGeneration(indexName);
+      if (generation == null) return false;
+
+      boolean switched = false;
+      setWriteBlock(indexName, true);
+      try {
+        refresh(indexName);
+        startBulkLoad(generation);
+        boolean copied = awaitTask(indexName, submitTask(indexName, newReindexRequest(indexName, null, generation, "-1")));
+        endBulkLoad(generation);
+        if (copied) {
+          long expected = count(indexName);
+          long actual = count(generation);
+          copied = expected >= 0 && expected == actual;
+          if (!copied) log.error("Index {} has {} documents but {} were copied into {}", indexName, expected, actual, generation);
+        }
+        if (!copied) {
+          log.error("Failed to copy index {} into {}, the new generation is dropped", indexName, generation);
+          deletePhysicalIndex(generation);
+          return false;
+        }
+        switched = switchGeneration(indexName, generation);
+      } finally {
+        // the blocked generation is deleted by the switch, otherwise the block is lifted even when the copy was
+        // interrupted, the client fails the requests of an interrupted thread
+        boolean interrupted = Thread.interrupted();
+        if (!switched) setWriteBlock(indexName, false);
+        if (interrupted) Thread.currentThread().interrupt();
+      }
+      if (switched) replayDeadLetters(indexName);
+      return switched;
+    }
+  }
 
-        Map<String, Property> keywordFields = keywordProperty.fields();
-        if (keywordFields != null && keywordFields.size() > 0) {
-          Map<String, Object> anythingKeywordFieldsRelated = new HashMap<>();
+  /**
+   * Block or allow the writes to the physical indices behind an index name.
+   *
+   * @param indexName
+   * @param blocked
+   */
+  private void setWriteBlock(String indexName, boolean blocked) {
+    ObjectNode settings = esSearchService.getObjectMapper().createObjectNode();
+    if (blocked) settings.put("index.blocks.write", true);
+    else settings.putNull("index.blocks.write");
+    putIndexSettings(indexName, settings);
+  }
 
-          keywordFields.forEach((fieldKey, fieldProperty) -> {
-            Map<String, Object> anythingKeywordFieldRelated = new HashMap<>();
-            anythingKeywordFieldRelated.put("type", fieldProperty._kind().jsonValue());
+  /**
+   * @param indexName
+   * @return the number of documents of the index, -1 if unknown
+   */
+  private long count(String indexName) {
+    try {
+      return getClient().count(r -> r.index(indexName)).count();
+    } catch (IOException e) {
+      log.error("Failed to count documents of index {} - {}", indexName, e);
+    }
+    return -1;
+  }
 
-            anythingKeywordFieldsRelated.put(fieldKey, anythingKeywordFieldRelated);
-          });
+  private void refresh(String indexName) {
+    try {
+      getClient().indices().refresh(r -> r.index(indexName));
+    } catch (IOException e) {
+      log.error("Failed to refresh index {} - {}", indexName, e);
+    }
+  }
 
-          anythingKeywordRelated.put("fields", anythingKeywordFieldsRelated);
-        }
+  @Nullable
+  private ESTask copy(String sourceIndexName, String targetIndexName, ObjectNode query) {
+    if (!hasIndex(sourceIndexName)) return null;
+    flushPendingWrites(sourceIndexName);
+    flushPendingWrites(targetIndexName);
+    // the copy would create a missing index without its mappings
+    createIndexIfNeeded(targetIndexName);
+
+    Request request = newReindexRequest(sourceIndexName, query, targetIndexName, esSearchService.getReindexRequestsPerSecond());
+    request.addParameter("conflicts", "proceed");
+    ESTask task = submitTask(sourceIndexName, request);
+    if (task != null) log.debug("Copying documents of index {} into {} in task {}", sourceIndexName, targetIndexName, task);
+    return task;
+  }
 
-        result.put(key, anythingKeywordRelated);
-      } else {
-        Map<String, Object> anythingElse = new HashMap<>();
-        anythingElse.put("type", property._kind().jsonValue());
+  /**
+   * Prepare a server-side copy of documents, run in the background and sliced by shard. The routings of the documents
+   * are kept, so are their versions when they are versioned.
+   *
+   * @param sourceIndexName
+   * @param query the documents to copy, all if null
+   * @param targetIndexName
+   * @param requestsPerSecond throttle, -1 is unthrottled
+   * @return
+   */
+  private Request newReindexRequest(String sourceIndexName, @Nullable ObjectNode query, String targetIndexName, String requestsPerSecond) {
+    ObjectNode body = esSearchService.getObjectMapper().createObjectNode();
+    ObjectNode source = body.putObject("source").put("index", sourceIndexName);
+    if (query != null) source.set("query", query);
+    ObjectNode dest = body.putObject("dest").put("index", targetIndexName);
+    if (esSearchService.getVersionType() != null) dest.put("version_type", "external");
+
+    Request request = new Request("POST", "/_reindex");
+    request.addParameter("slices", "auto");
+    request.addParameter("wait_for_completion", "false");
+    request.addParameter("requests_per_second", requestsPerSecond);
+    request.setJsonEntity(body.toString());
+    return request;
+  }
 
-        result.put(key, anythingElse);
+  /**
+   * @param indexName
+   * @param task
+   * @return true if the task completed without failures
+   */
+  private boolean awaitTask(String indexName, @Nullable ESTask task) {
+    if (task == null) return false;
+    try {
+      if (!task.await(TASK_TIMEOUT_HOURS, TimeUnit.HOURS)) {
+        log.error("Task {} on index {} did not complete", task, indexName);
+        return false;
       }
-    });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+    if (!task.isSuccessful()) {
+      JsonNode status = task.getStatus();
+      log.error("Task {} on index {} failed - {}", task, indexName, status.has("error") ? status.get("error") : status.at("/response/failures"));
+      return false;
+    }
+    return true;
+  }
+
+  private void deletePhysicalIndex(String indexName) {
+    try {
+      getClient().indices().delete(DeleteIndexRequest.of(r -> r.index(indexName)));
+    } catch (IOException e) {
+      log.error("Failed to delete index {} - {}", indexName, e);
+    }
+  }
 
-    return result;
+  /**
+   * Documents of the variable indices can be routed by one of their properties, otherwise they are routed by their
+   * parent, if any. Either way, a same document is always written with the same routing.
+   *
+   * @param indexName
+   * @param document
+   * @param parentId
+   * @return
+   */
+  @Nullable
+  private String getRouting(String indexName, Object document, @Nullable String parentId) {
+    String routingField = esSearchService.getRoutingField(indexName);
+    if (routingField == null) return parentId;
+    String routing = DocumentProperties.getString(document, routingField);
+    return routing == null ? parentId : routing;
   }
 
-  private ElasticsearchClient getClient() {
-    return esSearchService.getClient();
+  /**
+   * Get the routing of a document to be written. A document without a routing of its own keeps the routing it is
+   * currently indexed with, if the index has routed documents: otherwise it would be written once more in another
+   * shard, or not deleted. The lookup is a search, documents written less than a refresh interval ago are not found.
+   *
+   * @param indexName
+   * @param id
+   * @param document the document, null if not known
+   * @param parentId
+   * @return
+   */
+  @Nullable
+  private String resolveRouting(String indexName, String id, @Nullable Object document, @Nullable String parentId) {
+    String routing = document == null ? parentId : getRouting(indexName, document, parentId);
+    if (routing != null) {
+      routedIndices.put(IndexGenerations.aliasOf(indexName), true);
+      return routing;
+    }
+    return lookupRoutings(indexName, Collections.singletonList(id), Function.identity(), null).get(id);
+  }
+
+  /**
+   * Get the routings the documents are currently indexed with, when they have no routing of their own.
+   *
+   * @param indexName
+   * @param documents
+   * @param idOf
+   * @param parentId
+   * @return the routings by document id, only for the routed documents
+   */
+  private <T> Map<String, String> lookupRoutings(String indexName, List<T> documents, Function<T, String> idOf,
+                                                 @Nullable String parentId) {
+    Map<String, String> routings = new HashMap<>();
+    if (parentId != null || documents.isEmpty() || !isRouted(indexName)) return routings;
+    ObjectNode body = esSearchService.getObjectMapper().createObjectNode()
+      .put("size", documents.size())
+      .put("_source", false);
+    ArrayNode values = body.putObject("query").putObject("ids").putArray("values");
+    documents.forEach(document -> values.add(idOf.apply(document)));
+    Request request = new Request("POST", "/" + indexName + "/_search");
+    request.setJsonEntity(body.toString());
+    try {
+      for (JsonNode hit : search(request).path("hits").path("hits")) {
+        if (hit.hasNonNull("_routing")) routings.put(hit.get("_id").asText(), hit.get("_routing").asText());
+      }
+    } catch (ResponseException e) {
+      if (e.getResponse().getStatusLine().getStatusCode() != 404) log.error("Failed to get routings of documents of index {} - {}", indexName, e);
+    } catch (IOException e) {
+      log.error("Failed to get routings of documents of index {} - {}", indexName, e);
+    }
+    return routings;
   }
 
-  private String toJson(Object obj) {
+  /**
+   * @param indexName
+   * @return true if the index has documents written with a routing, checked once per index
+   */
+  private boolean isRouted(String indexName) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    Boolean routed = routedIndices.get(alias);
+    if (routed != null) return routed;
+
+    ObjectNode body = esSearchService.getObjectMapper().createObjectNode()
+      .put("size", 0)
+      .put("terminate_after", 1);
+    body.putObject("query").putObject("wildcard").put("_routing", "*");
+    Request request = new Request("POST", "/" + indexName + "/_search");
+    request.setJsonEntity(body.toString());
     try {
-      return esSearchService.getObjectMapper().writeValueAsString(obj);
-    } catch (JsonProcessingException e) {
-      throw new RuntimeException("Cannot serialize " + obj + " to ElasticSearch", e);
+      routed = search(request).at("/hits/total/value").asLong() > 0;
+    } catch (ResponseException e) {
+      if (e.getResponse().getStatusLine().getStatusCode() != 404) {
+        log.error("Failed to find routed documents of index {} - {}", indexName, e);
+        return true;
+      }
+      routed = false;
+    } catch (IOException e) {
+      // not known, routings are looked up until it is
+      log.error("Failed to find routed documents of index {} - {}", indexName, e);
+      return true;
     }
+    Boolean previous = routedIndices.putIfAbsent(alias, routed);
+    return previous == null ? routed : previous;
   }
 
-  private Map<String, Object> toJsonData(Object obj) {
-    return esSearchService.getObjectMapper().convertValue(obj, new TypeReference<Map<String, Object>>() {});
+  private JsonNode search(Request request) throws IOException {
+    Response response = esSearchService.getRestClient().performRequest(request);
+    try (InputStream content = response.getEntity().getContent()) {
+      return esSearchService.getObjectMapper().readTree(content);
+    }
   }
 
-  private IndexRequest<JsonData> getIndexRequestBuilder(String indexName, String id, String source, String parentId) {
-    IndexRequest<JsonData> request = IndexRequest.of(r -> r.index(indexName).id(id).routing(parentId).withJson(new StringReader(source)));
+  /**
+   * Build the request writing a document, its source serialized by the same object writer as the bulk requests.
+   *
+   * @param indexName
+   * @param id
+   * @param document
+   * @param routing
+   * @return
+   * @throws IOException
+   */
+  private Request getIndexRequest(String indexName, String id, Object document, @Nullable String routing) throws IOException {
+    Request request = new Request("PUT", "/" + indexName + "/_doc/" + encodePathPart(id));
+    if (routing != null) request.addParameter("routing", routing);
+    String versionType = esSearchService.getVersionType();
+    Long version = versionType == null ? null : DocumentVersions.of(document);
+    if (version != null) {
+      request.addParameter("version", String.valueOf(version));
+      request.addParameter("version_type", versionType);
+    }
+    byte[] source = esSearchService.getObjectWriter(document.getClass()).writeValueAsBytes(document);
+    request.setEntity(new ByteArrayEntity(source, ContentType.APPLICATION_JSON));
     return request;
   }
 
-  private synchronized CreateIndexResponse createIndexIfNeeded(String indexName) {
-    log.trace("Ensuring index existence for index {}", indexName);
+  private static String encodePathPart(String part) {
+    try {
+      // the client does not encode the path, slashes in the id are escaped too
+      return new URI(null, null, null, -1, "/" + part, null, null).getRawPath().substring(1).replace("/", "%2F");
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Invalid document id " + part, e);
+    }
+  }
+
+  /**
+   * @param e
+   * @return the type of the error in the response body, if any
+   */
+  @Nullable
+  private String getErrorType(ResponseException e) {
+    try (InputStream content = e.getResponse().getEntity().getContent()) {
+      JsonNode type = esSearchService.getObjectMapper().readTree(content).path("error").path("type");
+      return type.isTextual() ? type.asText() : null;
+    } catch (Exception ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Make sure the index exists, known indices are cached so that writers do not check existence on each call
+   * and only the writers of a same missing index are serialized.
+   *
+   * @param indexName
+   */
+  private void createIndexIfNeeded(String indexName) {
+    if (existingIndices.contains(indexName)) return;
+
+    synchronized (getIndexLock(indexName)) {
+      log.trace("Ensuring index existence for index {}", indexName);
+      if (!hasIndex(indexName)) {
+        // the taxonomies may have changed since the template was registered
+        indexTemplates.register(indexName);
+        if (createIndex(IndexGenerations.generationName(indexName, 1), indexName) != null) existingIndices.add(indexName);
+      }
+    }
+  }
+
+  private Object getIndexLock(String indexName) {
+    return indexLocks.computeIfAbsent(indexName, name -> new Object());
+  }
+
+  private void invalidateIndex(String indexName) {
+    fieldMappings.remove(indexName);
+    routedIndices.remove(indexName);
+    contentHashes.clear(indexName);
+    if (existingIndices.remove(indexName)) log.warn("Index {} was not found, it will be created again", indexName);
+  }
+
+  private boolean isIndexNotFound(ElasticsearchException e) {
+    return e.error() != null && "index_not_found_exception".equals(e.error().type());
+  }
+
+  /**
+   * @param e
+   * @return true if the request failed because the cluster was unavailable or overloaded, it may succeed later
+   */
+  private boolean isRetryable(ElasticsearchException e) {
+    return ESBulkProcessor.isRetryable(e.status(), e.error() == null ? null : e.error().type());
+  }
+
+  /**
+   * Create a physical index with the configured settings and mappings, from the index template when it is
+   * registered, otherwise by putting the mappings of the index configurations once created.
+   *
+   * @param indexName physical index name
+   * @param alias alias to be added at creation time, if any
+   * @return
+   */
+  private CreateIndexResponse createIndex(String indexName, @Nullable String alias) {
+    log.info("Creating index {}", indexName);
     ElasticsearchIndicesClient indicesAdmin = getClient().indices();
+    boolean templated = indexTemplates.isRegistered(indexName);
+
+    IndexSettings.Builder indexSettingsBuilder = new IndexSettings.Builder();
+
+    if (!esSearchService.getIndexSettings().equals("{}")) {
+      indexSettingsBuilder.withJson(new StringReader(esSearchService.getIndexSettings()));
+    }
+
+    IndexSettings settings = indexSettingsBuilder
+      .numberOfReplicas(Integer.toString(esSearchService.getNbReplicas()))
+      .numberOfShards(Integer.toString(esSearchService.getNbShards())).build();
+    try {
+      CreateIndexResponse createdResponse = indicesAdmin.create(CreateIndexRequest.of(r -> {
+        r.index(indexName);
+        if (!templated) r.settings(settings);
+        if (alias != null) r.aliases(alias, a -> a);
+        return r;
+      }));
+      if (!templated) {
+        esSearchService.getIndexConfigurationListeners().forEach(listener -> listener.onIndexCreated(esSearchService, indexName));
+      }
+      fieldMappings.remove(IndexGenerations.aliasOf(indexName));
+
+      return createdResponse;
+    } catch (IOException e) {
+      log.error("Failed to create index index {} - {}", indexName, e);
+    }
+
+    return null;
+  }
+
+  /**
+   * Get the physical indices behind an index name: the index itself if it is not an alias (indices created before
+   * generations were introduced) and all its generations, including the ones left behind by an aborted reindex.
+   *
+   * @param indexName
+   * @return
+   */
+  private Set<String> getPhysicalIndices(String indexName) {
+    try {
+      GetIndexResponse response = getClient().indices().get(GetIndexRequest.of(r -> r
+        .index(indexName, IndexGenerations.generationsPattern(indexName))
+        .ignoreUnavailable(true)));
+      return response.result().keySet().stream()
+        .filter(name -> name.equals(indexName) || IndexGenerations.isGenerationOf(name, indexName))
+        .collect(Collectors.toSet());
+    } catch (IOException e) {
+      log.error("Failed to get physical indices of {} - {}", indexName, e);
+    }
+
+    return Sets.newHashSet();
+  }
 
-    if (!hasIndex(indexName)) {
-      log.info("Creating index {}", indexName);
+  /**
+   * @param indexName
+   * @return the name of the physical index that would replace the current generation of the index
+   */
+  String getNextGenerationName(String indexName) {
+    int generation = getPhysicalIndices(indexName).stream().mapToInt(IndexGenerations::generationOf).max().orElse(0) + 1;
+    return IndexGenerations.generationName(indexName, generation);
+  }
+
+  /**
+   * Make a physical index restored from a snapshot the current generation of an index, the previous generations
+   * are deleted.
+   *
+   * @param indexName
+   * @param generationName
+   * @return true if the index points to the restored generation
+   */
+  boolean switchToRestored(String indexName, String generationName) {
+    synchronized (getIndexLock(indexName)) {
+      // the restored documents replace the ones written since the snapshot
+      if (writeBehindBuffer != null) writeBehindBuffer.discard(indexName);
+      reindexCheckpoints.clear(indexName);
+      contentHashes.clear(indexName);
+      if (!switchGeneration(indexName, generationName)) return false;
+      existingIndices.add(indexName);
+      return true;
+    }
+  }
 
-      IndexSettings.Builder indexSettingsBuilder = new IndexSettings.Builder();
+  /**
+   * Create the physical index that will replace the current generation of an index, without any alias.
+   *
+   * @param indexName
+   * @return the new physical index name, null if it could not be created
+   */
+  private String createNextGeneration(String indexName) {
+    // the taxonomies may have changed since the template was registered
+    indexTemplates.register(indexName);
+    String generationName = getNextGenerationName(indexName);
+    if (createIndex(generationName, null) == null) {
+      log.error("Failed to create generation {} of index {}", generationName, indexName);
+      return null;
+    }
+    return generationName;
+  }
 
-      if (!esSearchService.getIndexSettings().equals("{}")) {
-        indexSettingsBuilder.withJson(new StringReader(esSearchService.getIndexSettings()));
+  /**
+   * Fill a new generation of the index and make it the current one. The progress is checkpointed, so that a reindex
+   * that was interrupted resumes in the generation it was filling, skipping the documents already acknowledged, as
+   * long as the generation still has them and the documents are iterated in the same order; otherwise all of them are
+   * sent again. The generation is switched to only if it has all the documents that were written. The documents
+   * written in the index meanwhile are written again in the new generation. The rebuilt index is then snapshotted, if
+   * enabled and if all the documents were written.
+   *
+   * @param indexName
+   * @param documents
+   * @param idOf
+   */
+  private <T> void rebuildIndex(String indexName, Iterable<? extends T> documents, Function<T, String> idOf) {
+    synchronized (getIndexLock(indexName)) {
+      flushPendingWrites(indexName);
+      String generation;
+      long skip = 0;
+      long skipMissing = 0;
+      String lastSkippedId = null;
+      ESReindexCheckpoints.Checkpoint checkpoint = getResumableCheckpoint(indexName);
+      if (checkpoint == null) {
+        generation = createNextGeneration(indexName);
+        if (generation == null) return;
+        reindexCheckpoints.save(indexName, generation, 0, 0, null);
+      } else {
+        generation = checkpoint.getGeneration();
+        skip = checkpoint.getDocuments();
+        skipMissing = checkpoint.getMissing();
+        lastSkippedId = checkpoint.getLastId();
+        log.info("Resuming reindex of {} in {} after {} documents", indexName, generation, skip);
       }
 
-      IndexSettings settings = indexSettingsBuilder
-        .numberOfReplicas(Integer.toString(esSearchService.getNbReplicas()))
-        .numberOfShards(Integer.toString(esSearchService.getNbShards())).build();
+      String target = generation;
+      int failures;
+      boolean switched = false;
+      rebuildWrites.start(indexName);
+      // the failed operations spooled so far are superseded by the rebuild
+      deadLetterSpool.hold(indexName);
       try {
-        CreateIndexResponse createdResponse = indicesAdmin.create(CreateIndexRequest.of(r -> r.index(indexName).settings(settings)));
-        esSearchService.getIndexConfigurationListeners().forEach(listener -> listener.onIndexCreated(esSearchService, indexName));
+        startBulkLoad(target);
+        // the new generation is empty, all the documents are sent but their hashes are recorded
+        boolean incremental = esSearchService.isIncrementalIndexing();
+        ESReindexCheckpoints.Progress progress = reindexCheckpoints.newProgress(indexName, target, this::flush);
+        ESBulkProcessor bulkProcessor = newBulkProcessor(target);
+        if (incremental) bulkProcessor.setContentHashing(Collections.emptyMap());
+        boolean resent;
+        try (bulkProcessor) {
+          resent = resumeBulkIndex(bulkProcessor, indexName, target, documents, idOf, skip, lastSkippedId, skipMissing, progress);
+        }
+        failures = bulkProcessor.getFailureCount();
+        progress.save();
+        // documents acknowledged with an asynchronous translog and no replica may have been lost
+        long expected = (resent ? 0 : skip - skipMissing) + bulkProcessor.getDocumentCount() - failures - bulkProcessor.getStaleCount();
+        refresh(target);
+        long actual = count(target);
+        // the checkpoint is kept when the documents cannot be counted
+        if (actual < 0) return;
+        if (actual < expected) {
+          log.error("Generation {} of index {} has {} documents, {} were written: the reindex starts over on next attempt",
+            target, indexName, actual, expected);
+          reindexCheckpoints.clear(indexName);
+          deletePhysicalIndex(target);
+          return;
+        }
+        Set<String> rewritten = new HashSet<>(rebuildWrites.replay(indexName, target));
+        endBulkLoad(target);
+        flushPendingWrites(indexName);
+        // the checkpoint is kept, a next reindex resumes in the filled generation
+        if (!switchGeneration(indexName, target)) return;
+        switched = true;
+        deadLetterSpool.dropHeld(indexName);
+        reindexCheckpoints.clear(indexName);
+        // the operations run again by the stop clear the hashes of the documents they changed
+        if (incremental) contentHashes.replace(indexName, bulkProcessor.getIndexedHashes());
+        rewritten.addAll(rebuildWrites.stop(indexName, target));
+        // the hashes of the bulk may not be the ones of the documents written again
+        if (incremental) rewritten.forEach(id -> contentHashes.remove(indexName, id));
+      } finally {
+        rebuildWrites.discard(indexName);
+        if (!switched) deadLetterSpool.release(indexName);
+      }
+      existingIndices.add(indexName);
+      if (!esSearchService.isSnapshotAfterReindex()) return;
+      if (failures == 0) esSearchService.getSnapshots().snapshot(indexName);
+      else log.warn("Index {} is not snapshotted, {} documents could not be written", indexName, failures);
+    }
+  }
 
-        return createdResponse;
-      } catch (IOException e) {
-        log.error("Failed to create index index {} - {}", indexName, e);
+  /**
+   * Bulk index the documents of a reindex, after the ones already acknowledged. The documents are iterated once,
+   * unless they are not iterated as when the checkpoint was saved: the skipped documents are then sent too, by a
+   * second iteration that stops after them.
+   *
+   * @param bulkProcessor
+   * @param indexName the index being rebuilt, the documents keep the routing they have in it
+   * @param generation
+   * @param documents
+   * @param idOf
+   * @param skip number of documents already acknowledged
+   * @param lastSkippedId id of the last document acknowledged
+   * @param skipMissing number of the acknowledged documents that were not written
+   * @param progress
+   * @return true if the skipped documents were sent again
+   */
+  private <T> boolean resumeBulkIndex(ESBulkProcessor bulkProcessor, String indexName, String generation,
+                                      Iterable<? extends T> documents, Function<T, String> idOf, long skip,
+                                      @Nullable String lastSkippedId, long skipMissing,
+                                      ESReindexCheckpoints.Progress progress) {
+    long position = 0;
+    boolean verified = skip == 0;
+    boolean resent = false;
+    if (verified) setProgress(bulkProcessor, progress, 0, 0);
+    List<T> batch = new ArrayList<>();
+    for (T document : documents) {
+      if (!verified) {
+        if (++position < skip) continue;
+        verified = true;
+        if (idOf.apply(document).equals(lastSkippedId)) {
+          setProgress(bulkProcessor, progress, skip, skipMissing);
+          continue;
+        }
+        resent = true;
+      }
+      batch.add(document);
+      if (batch.size() >= ROUTING_LOOKUP_SIZE) bulkIndex(bulkProcessor, generation, indexName, batch, idOf, null);
+    }
+    bulkIndex(bulkProcessor, generation, indexName, batch, idOf, null);
+    if (!verified) resent = true;
+    if (!resent) return false;
+
+    // the positions of the documents sent are not the ones of the checkpoint, an interrupted reindex starts over
+    log.warn("Documents of {} are not iterated as when its reindex was interrupted, sending all of them again", generation);
+    long count = 0;
+    for (T document : documents) {
+      if (++count >= skip) break;
+      batch.add(document);
+      if (batch.size() >= ROUTING_LOOKUP_SIZE) bulkIndex(bulkProcessor, generation, indexName, batch, idOf, null);
+    }
+    bulkIndex(bulkProcessor, generation, indexName, batch, idOf, null);
+    return true;
+  }
+
+  private void setProgress(ESBulkProcessor bulkProcessor, ESReindexCheckpoints.Progress progress, long skip, long skipMissing) {
+    bulkProcessor.setProgressListener((lastId, done) -> progress.update(lastId, skip + done,
+      skipMissing + bulkProcessor.getFailureCount() + bulkProcessor.getStaleCount()));
+  }
+
+  /**
+   * @param indexName
+   * @return the checkpoint of an interrupted reindex of the index, if its generation is still there and has the
+   * documents that were written in it
+   */
+  @Nullable
+  private ESReindexCheckpoints.Checkpoint getResumableCheckpoint(String indexName) {
+    ESReindexCheckpoints.Checkpoint checkpoint = reindexCheckpoints.get(indexName);
+    if (checkpoint == null) return null;
+    String generation = checkpoint.getGeneration();
+    if (System.currentTimeMillis() - checkpoint.getTimestamp() > esSearchService.getReindexCheckpointMaxAge()) {
+      // the documents may have changed too much since, the stale generation is dropped on next switch
+      log.info("Reindex checkpoint of {} has expired, starting over", indexName);
+    } else if (IndexGenerations.isGenerationOf(generation, indexName) && getPhysicalIndices(indexName).contains(generation)) {
+      if (isAvailable(generation)) {
+        refresh(generation);
+        long count = count(generation);
+        if (count >= checkpoint.getDocuments() - checkpoint.getMissing()) return checkpoint;
+        if (count >= 0) log.warn("Generation {} of index {} has {} documents, {} were written: starting over", generation, indexName,
+          count, checkpoint.getDocuments() - checkpoint.getMissing());
+      } else {
+        log.warn("Generation {} of index {} is not available, starting over", generation, indexName);
       }
+      deletePhysicalIndex(generation);
     }
 
+    reindexCheckpoints.clear(indexName);
     return null;
   }
 
-  private static class IndexFieldMappingImpl implements IndexFieldMapping {
+  /**
+   * @param indexName
+   * @return true if all the primary shards of the index are assigned
+   */
+  private boolean isAvailable(String indexName) {
+    Request request = new Request("GET", "/_cluster/health/" + indexName);
+    request.addParameter("wait_for_status", "yellow");
+    request.addParameter("timeout", "30s");
+    try {
+      Response response = esSearchService.getRestClient().performRequest(request);
+      try (InputStream content = response.getEntity().getContent()) {
+        JsonNode health = esSearchService.getObjectMapper().readTree(content);
+        return !health.path("timed_out").asBoolean() && !"red".equals(health.path("status").asText());
+      }
+    } catch (IOException e) {
+      // a timeout is reported with a 408 status
+      log.error("Failed to get health of index {} - {}", indexName, e.getMessage());
+    }
+    return false;
+  }
+
+  /**
+   * Make the documents written in an index durable, whatever its translog durability.
+   *
+   * @param indexName
+   * @return false if the flush failed
+   */
+  private boolean flush(String indexName) {
+    try {
+      getClient().indices().flush(r -> r.index(indexName));
+      return true;
+    } catch (IOException e) {
+      log.error("Failed to flush index {} - {}", indexName, e);
+    }
+    return false;
+  }
+
+  /**
+   * Relax the settings of an index that is not searched yet: no refresh, no replicas, asynchronous translog.
+   *
+   * @param indexName
+   */
+  private void startBulkLoad(String indexName) {
+    if (!esSearchService.isReindexBulkLoad()) return;
+    log.debug("Starting bulk load of index {}", indexName);
+    ObjectNode settings = esSearchService.getObjectMapper().createObjectNode()
+      .put("index.refresh_interval", "-1")
+      .put("index.number_of_replicas", 0)
+      .put("index.translog.durability", "async");
+    putIndexSettings(indexName, settings);
+  }
+
+  /**
+   * Restore the configured settings of a bulk loaded index, then refresh it once and optionally force merge it.
+   *
+   * @param indexName
+   */
+  private void endBulkLoad(String indexName) {
+    if (esSearchService.isReindexBulkLoad()) {
+      log.debug("Ending bulk load of index {}", indexName);
+      ObjectNode settings = esSearchService.getObjectMapper().createObjectNode()
+        .put("index.number_of_replicas", esSearchService.getNbReplicas());
+      // null resets to the cluster default
+      settings.set("index.refresh_interval", getConfiguredIndexSetting("refresh_interval"));
+      settings.set("index.translog.durability", getConfiguredIndexSetting("translog.durability"));
+      putIndexSettings(indexName, settings);
+    }
 
-    private final ReadContext context;
+    refresh(indexName);
 
-    IndexFieldMappingImpl(ReadContext ctx) {
-      this.context = ctx;
+    if (esSearchService.isReindexForceMerge()) {
+      // merging can take longer than the client timeout, let it run in the background
+      Request request = new Request("POST", "/" + indexName + "/_forcemerge");
+      request.addParameter("max_num_segments", "1");
+      request.addParameter("wait_for_completion", "false");
+      try {
+        esSearchService.getRestClient().performRequest(request);
+      } catch (IOException e) {
+        log.error("Failed to force merge index {} - {}", indexName, e);
+      }
     }
+  }
 
-    @Override
-    public boolean isAnalyzed(String fieldName) {
-      boolean analyzed = false;
-      if (context != null) {
-        List<Object> result = context.read(String.format("$..%s..analyzed", fieldName.replaceAll("\\.", "..")));
-        analyzed = result.size() > 0;
+  /**
+   * Get an index setting from the "index" section of the plugin's elasticsearch.yml, written either as a dotted key
+   * or as nested objects.
+   *
+   * @param name
+   * @return the setting value, a null node if not configured
+   */
+  private JsonNode getConfiguredIndexSetting(String name) {
+    try {
+      JsonNode node = esSearchService.getObjectMapper().readTree(esSearchService.getIndexSettings());
+      if (node.has(name)) return node.get(name);
+      for (String key : name.split("\\.")) {
+        node = node.path(key);
       }
+      if (!node.isMissingNode()) return node;
+    } catch (IOException e) {
+      log.error("Failed to read index settings - {}", e);
+    }
+    return NullNode.getInstance();
+  }
 
-      return analyzed;
+  private void putIndexSettings(String indexName, ObjectNode settings) {
+    // settings are sent as is, the typed client only knows a subset of them
+    Request request = new Request("PUT", "/" + indexName + "/_settings");
+    request.setJsonEntity(settings.toString());
+    try {
+      esSearchService.getRestClient().performRequest(request);
+    } catch (IOException e) {
+      log.error("Failed to update settings of index {} - {}", indexName, e);
     }
+  }
 
+  /**
+   * Atomically point the alias to the new generation and delete the previous physical indices.
+   *
+   * @param indexName
+   * @param generationName
+   * @return true if the index points to the new generation
+   */
+  private boolean switchGeneration(String indexName, String generationName) {
+    Set<String> previous = getPhysicalIndices(indexName);
+    previous.remove(generationName);
+
+    UpdateAliasesRequest.Builder builder = new UpdateAliasesRequest.Builder()
+      .actions(a -> a.add(add -> add.index(generationName).alias(indexName)));
+    previous.forEach(name -> builder.actions(a -> a.removeIndex(remove -> remove.index(name))));
+
+    try {
+      getClient().indices().updateAliases(builder.build());
+      fieldMappings.remove(indexName);
+      log.info("Index {} now points to {}, removed {}", indexName, generationName, previous);
+      return true;
+    } catch (IOException e) {
+      log.error("Failed to switch index {} to {} - {}", indexName, generationName, e);
+    }
+    return false;
   }
 
 }
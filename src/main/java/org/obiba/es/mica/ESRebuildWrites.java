@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Records the documents written in an index while a new generation of it is being built: these writes go to the
+ * current generation, which is deleted once the alias is switched. They are written again in the new generation once
+ * its bulk load is done, the bulk may have sent an older version of the documents, and once more after the switch for
+ * the ones written in between. Only the last write of a document is kept. The other operations, updates and
+ * deletions by query or copies, are run again after the switch, in order, once the documents are written again.
+ */
+class ESRebuildWrites {
+
+  private static final Logger log = LoggerFactory.getLogger(ESRebuildWrites.class);
+
+  private final Function<String, ESBulkProcessor> bulkProcessorFactory;
+
+  // recorded writes by index name and document id, guarded by this
+  private final Map<String, Map<String, RecordedWrite>> recordedWrites = new HashMap<>();
+
+  // recorded operations by index name, guarded by this
+  private final Map<String, List<Runnable>> recordedOperations = new HashMap<>();
+
+  ESRebuildWrites(Function<String, ESBulkProcessor> bulkProcessorFactory) {
+    this.bulkProcessorFactory = bulkProcessorFactory;
+  }
+
+  /**
+   * Start recording the writes of an index.
+   *
+   * @param indexName
+   */
+  synchronized void start(String indexName) {
+    recordedWrites.put(indexName, new LinkedHashMap<>());
+    recordedOperations.put(indexName, new ArrayList<>());
+  }
+
+  /**
+   * Record a document write, if the index is being rebuilt. To be called before the write is sent.
+   *
+   * @param indexName
+   * @param id
+   * @param routing
+   * @param document
+   */
+  void index(String indexName, String id, @Nullable String routing, Object document) {
+    record(indexName, id, new RecordedWrite(routing, document));
+  }
+
+  /**
+   * Record a document deletion, if the index is being rebuilt. To be called before the deletion is sent.
+   *
+   * @param indexName
+   * @param id
+   * @param routing
+   */
+  void delete(String indexName, String id, @Nullable String routing) {
+    record(indexName, id, new RecordedWrite(routing, null));
+  }
+
+  /**
+   * Record an operation, if the index is being rebuilt, to be run again once the index points to the new generation.
+   *
+   * @param indexName
+   * @param operation
+   */
+  synchronized void operation(String indexName, Runnable operation) {
+    List<Runnable> operations = recordedOperations.get(indexName);
+    if (operations != null) operations.add(operation);
+  }
+
+  /**
+   * Write the recorded documents in the new generation and keep recording.
+   *
+   * @param indexName
+   * @param generationName
+   * @return the ids of the documents written
+   */
+  Set<String> replay(String indexName, String generationName) {
+    Map<String, RecordedWrite> writes;
+    synchronized (this) {
+      writes = recordedWrites.replace(indexName, new LinkedHashMap<>());
+    }
+    return replay(indexName, generationName, writes);
+  }
+
+  /**
+   * Stop recording, write the last recorded documents in the new generation and run the recorded operations again.
+   * To be called once the index points to the new generation, the operations are not recorded again.
+   *
+   * @param indexName
+   * @param generationName
+   * @return the ids of the documents written
+   */
+  Set<String> stop(String indexName, String generationName) {
+    Map<String, RecordedWrite> writes;
+    List<Runnable> operations;
+    synchronized (this) {
+      writes = recordedWrites.remove(indexName);
+      operations = recordedOperations.remove(indexName);
+    }
+    Set<String> written = replay(indexName, generationName, writes);
+    if (operations != null && !operations.isEmpty()) {
+      log.info("Running again {} operations of index {}, they were run during the rebuild", operations.size(), indexName);
+      for (Runnable operation : operations) {
+        try {
+          operation.run();
+        } catch (Exception e) {
+          log.error("Failed to run again an operation of index {} - {}", indexName, e);
+        }
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Stop recording without writing, when the rebuild is abandoned.
+   *
+   * @param indexName
+   */
+  synchronized void discard(String indexName) {
+    recordedWrites.remove(indexName);
+    recordedOperations.remove(indexName);
+  }
+
+  //
+  // Private methods
+  //
+
+  private synchronized void record(String indexName, String id, RecordedWrite write) {
+    Map<String, RecordedWrite> writes = recordedWrites.get(indexName);
+    if (writes == null) return;
+    writes.remove(id);
+    writes.put(id, write);
+  }
+
+  private Set<String> replay(String indexName, String generationName, @Nullable Map<String, RecordedWrite> writes) {
+    if (writes == null || writes.isEmpty()) return Collections.emptySet();
+
+    log.info("Writing {} documents of index {} again in {}, they were written during the rebuild", writes.size(),
+      indexName, generationName);
+    try (ESBulkProcessor bulkProcessor = bulkProcessorFactory.apply(generationName)) {
+      writes.forEach((id, write) -> {
+        if (write.document == null) bulkProcessor.delete(id, write.routing);
+        else bulkProcessor.index(id, write.routing, write.document);
+      });
+    }
+    return writes.keySet();
+  }
+
+  private static class RecordedWrite {
+
+    private final String routing;
+
+    // null for a deletion
+    private final Object document;
+
+    private RecordedWrite(String routing, Object document) {
+      this.routing = routing;
+      this.document = document;
+    }
+  }
+}
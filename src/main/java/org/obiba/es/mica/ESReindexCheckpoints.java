@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Predicate;
+
+/**
+ * Progress of the full reindexes, one small JSON file per index: the generation being filled, the number of
+ * documents acknowledged so far, how many of them were not written and the id of the last of them. The checkpoint
+ * is removed once the index points to the new generation.
+ */
+class ESReindexCheckpoints {
+
+  private static final Logger log = LoggerFactory.getLogger(ESReindexCheckpoints.class);
+
+  // minimum time between two saves of a same reindex progress, each save flushes the generation
+  private static final long SAVE_INTERVAL = 10 * 1000;
+
+  private final ESSearchEngineService esSearchService;
+
+  private final File folder;
+
+  ESReindexCheckpoints(ESSearchEngineService esSearchService, File folder) {
+    this.esSearchService = esSearchService;
+    this.folder = folder;
+  }
+
+  /**
+   * @param indexName
+   * @return the checkpoint of an interrupted reindex, null if none
+   */
+  @Nullable
+  synchronized Checkpoint get(String indexName) {
+    File file = getFile(indexName);
+    if (!file.exists()) return null;
+    try {
+      JsonNode node = esSearchService.getObjectMapper().readTree(file);
+      return new Checkpoint(node.path("generation").asText(), node.path("documents").asLong(),
+        node.path("missing").asLong(), node.hasNonNull("lastId") ? node.get("lastId").asText() : null,
+        node.path("timestamp").asLong());
+    } catch (IOException e) {
+      log.error("Cannot read reindex checkpoint of index {} - {}", indexName, e);
+      return null;
+    }
+  }
+
+  /**
+   * @param indexName
+   * @param generation
+   * @param documents number of documents acknowledged
+   * @param missing number of the acknowledged documents that were not written, failed or stale
+   * @param lastId id of the last document acknowledged, null if none
+   */
+  synchronized void save(String indexName, String generation, long documents, long missing, @Nullable String lastId) {
+    ObjectNode node = esSearchService.getObjectMapper().createObjectNode()
+      .put("generation", generation)
+      .put("documents", documents)
+      .put("missing", missing)
+      .put("lastId", lastId)
+      .put("timestamp", System.currentTimeMillis());
+    if (!folder.exists()) folder.mkdirs();
+    File file = getFile(indexName);
+    File tmp = new File(folder, indexName + ".tmp");
+    try {
+      // replace atomically, so that an interruption does not leave a truncated checkpoint
+      Files.write(tmp.toPath(), esSearchService.getObjectMapper().writeValueAsBytes(node));
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("Cannot save reindex checkpoint of index {} - {}", indexName, e);
+    }
+  }
+
+  synchronized void clear(String indexName) {
+    File file = getFile(indexName);
+    if (file.exists() && !file.delete()) log.warn("Cannot delete reindex checkpoint {}", file);
+  }
+
+  /**
+   * @param indexName
+   * @param generation
+   * @param flush makes the acknowledged documents of the generation durable, false if it failed
+   * @return the progress of a reindex, to be saved as the documents are acknowledged
+   */
+  Progress newProgress(String indexName, String generation, Predicate<String> flush) {
+    return new Progress(indexName, generation, flush);
+  }
+
+  //
+  // Private methods
+  //
+
+  private File getFile(String indexName) {
+    return new File(folder, indexName + ".json");
+  }
+
+  static class Checkpoint {
+
+    private final String generation;
+
+    private final long documents;
+
+    private final long missing;
+
+    private final String lastId;
+
+    private final long timestamp;
+
+    Checkpoint(String generation, long documents, long missing, @Nullable String lastId, long timestamp) {
+      this.generation = generation;
+      this.documents = documents;
+      this.missing = missing;
+      this.lastId = lastId;
+      this.timestamp = timestamp;
+    }
+
+    String getGeneration() {
+      return generation;
+    }
+
+    long getDocuments() {
+      return documents;
+    }
+
+    /**
+     * @return the number of the acknowledged documents that are not in the generation
+     */
+    long getMissing() {
+      return missing;
+    }
+
+    @Nullable
+    String getLastId() {
+      return lastId;
+    }
+
+    /**
+     * @return when the checkpoint was saved, in epoch milliseconds
+     */
+    long getTimestamp() {
+      return timestamp;
+    }
+  }
+
+  /**
+   * Progress of a reindex, saved at most once per interval: the generation being filled has an asynchronous translog
+   * and no replica, the documents acknowledged are flushed before being checkpointed so that they are not lost if
+   * the cluster restarts.
+   */
+  class Progress {
+
+    private final String indexName;
+
+    private final String generation;
+
+    private final Predicate<String> flush;
+
+    private long documents;
+
+    private long missing;
+
+    private String lastId;
+
+    private long savedDocuments = -1;
+
+    private long savedAt;
+
+    private Progress(String indexName, String generation, Predicate<String> flush) {
+      this.indexName = indexName;
+      this.generation = generation;
+      this.flush = flush;
+    }
+
+    /**
+     * Record the progress, saved if the last save is old enough.
+     *
+     * @param lastId id of the last document acknowledged
+     * @param documents number of documents acknowledged
+     * @param missing number of the acknowledged documents that were not written
+     */
+    void update(@Nullable String lastId, long documents, long missing) {
+      this.lastId = lastId;
+      this.documents = documents;
+      this.missing = missing;
+      if (System.currentTimeMillis() - savedAt >= SAVE_INTERVAL) save();
+    }
+
+    /**
+     * Save the last recorded progress, if it was not saved yet.
+     */
+    void save() {
+      if (documents == savedDocuments) return;
+      if (!flush.test(generation)) return;
+      ESReindexCheckpoints.this.save(indexName, generation, documents, missing, lastId);
+      savedDocuments = documents;
+      savedAt = System.currentTimeMillis();
+    }
+  }
+}
@@ -13,7 +13,10 @@ package org.obiba.es.mica;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import net.minidev.json.JSONObject;
@@ -31,6 +34,7 @@ import org.obiba.es.mica.mapping.ProjectIndexConfiguration;
 import org.obiba.es.mica.mapping.StudyIndexConfiguration;
 import org.obiba.es.mica.mapping.TaxonomyIndexConfiguration;
 import org.obiba.es.mica.mapping.VariableIndexConfiguration;
+import org.obiba.es.mica.support.IndexGenerations;
 import org.obiba.mica.spi.search.ConfigurationProvider;
 import org.obiba.mica.spi.search.Indexer;
 import org.obiba.mica.spi.search.SearchEngineService;
@@ -42,12 +46,15 @@ import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
@@ -65,12 +72,16 @@ public class ESSearchEngineService implements SearchEngineService {
 
   private Node esNode;
 
+  private RestClient restClient;
+
   private ElasticsearchClient client;
 
   private ESIndexer esIndexer;
 
   private ESSearcher esSearcher;
 
+  private ESSnapshots esSnapshots;
+
   private ConfigurationProvider configurationProvider;
 
   private Set<Indexer.IndexConfigurationListener> indexConfigurationListeners;
@@ -79,6 +90,10 @@ public class ESSearchEngineService implements SearchEngineService {
 
   private ObjectMapper yamlObjectMapper = new ObjectMapper(new YAMLFactory());
 
+  private volatile ObjectMapper objectMapper;
+
+  private final Map<Class<?>, ObjectWriter> objectWriters = new ConcurrentHashMap<>();
+
   @Override
   public String getName() {
     return "mica-search-es7";
@@ -108,16 +123,28 @@ public class ESSearchEngineService implements SearchEngineService {
 
       String bufferLimitBytes = builder.build().get("http.max_content_length_bytes");
 
+      esSnapshots = new ESSnapshots(this);
       esIndexer = new ESIndexer(this);
       esSearcher = new ESSearcher(this, bufferLimitBytes == null || bufferLimitBytes.isEmpty() ? 250 * 1024 * 1024 : Integer.parseInt(bufferLimitBytes));
 
       running = true;
+
+      if (isIndexTemplates()) esIndexer.registerIndexTemplates();
+      esIndexer.clearWriteBlocks();
+      esIndexer.maintainOnStart(isUpdateMappingsOnStart(), getRemapOnStart());
+      if (isReplayDeadLettersOnStart()) esIndexer.replayDeadLetters();
     }
   }
 
   @Override
   public void stop() {
     running = false;
+    if (esIndexer != null) {
+      esIndexer.stop();
+    }
+    if (esSnapshots != null) {
+      esSnapshots.stop();
+    }
     if (esNode != null) {
       try {
         esNode.close();
@@ -130,15 +157,20 @@ public class ESSearchEngineService implements SearchEngineService {
     }
     esNode = null;
     client = null;
+    restClient = null;
   }
 
   @Override
   public void setConfigurationProvider(ConfigurationProvider configurationProvider) {
     this.configurationProvider = configurationProvider;
+    synchronized (this) {
+      objectMapper = null;
+      objectWriters.clear();
+    }
   }
 
   @Override
-  public Indexer getIndexer() {
+  public ESIndexer getIndexer() {
     return esIndexer;
   }
 
@@ -147,22 +179,51 @@ public class ESSearchEngineService implements SearchEngineService {
     return esSearcher;
   }
 
+  /**
+   * @return the snapshots of the Mica indices
+   */
+  public ESSnapshots getSnapshots() {
+    return esSnapshots;
+  }
+
   public ElasticsearchClient getClient() {
     return client;
   }
 
+  RestClient getRestClient() {
+    return restClient;
+  }
+
   ConfigurationProvider getConfigurationProvider() {
     return configurationProvider;
   }
 
+  /**
+   * Get the object mapper provided by Mica, or a default one. The mapper is resolved once.
+   *
+   * @return
+   */
   ObjectMapper getObjectMapper() {
-    if (configurationProvider == null || configurationProvider.getObjectMapper() == null) {
-      ObjectMapper mapper = new ObjectMapper();
-      mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-      mapper.findAndRegisterModules();
-      return mapper;
+    ObjectMapper mapper = objectMapper;
+    if (mapper == null) {
+      synchronized (this) {
+        if (objectMapper == null) {
+          objectMapper = createObjectMapper();
+        }
+        mapper = objectMapper;
+      }
     }
-    return configurationProvider.getObjectMapper();
+    return mapper;
+  }
+
+  /**
+   * Get the writer of the documents of the given class, always on a single line as expected in bulk requests.
+   *
+   * @param type
+   * @return
+   */
+  ObjectWriter getObjectWriter(Class<?> type) {
+    return objectWriters.computeIfAbsent(type, t -> getObjectMapper().writerFor(t).without(SerializationFeature.INDENT_OUTPUT));
   }
 
   synchronized Set<Indexer.IndexConfigurationListener> getIndexConfigurationListeners() {
@@ -188,6 +249,124 @@ public class ESSearchEngineService implements SearchEngineService {
     return Integer.parseInt(properties.getProperty("replicas", "1"));
   }
 
+  int getBulkMaxActions() {
+    return Integer.parseInt(properties.getProperty("bulkMaxActions", "1000"));
+  }
+
+  long getBulkMaxBytes() {
+    return Long.parseLong(properties.getProperty("bulkMaxBytes", Long.toString(5 * 1024 * 1024)));
+  }
+
+  int getBulkConcurrentRequests() {
+    return Integer.parseInt(properties.getProperty("bulkConcurrentRequests", "1"));
+  }
+
+  int getBulkMaxRetries() {
+    return Integer.parseInt(properties.getProperty("bulkMaxRetries", "5"));
+  }
+
+  long getBulkRetryDelay() {
+    return Long.parseLong(properties.getProperty("bulkRetryDelay", "500"));
+  }
+
+  boolean isReplayDeadLettersOnStart() {
+    return Boolean.parseBoolean(properties.getProperty("replayDeadLettersOnStart", "true"));
+  }
+
+  boolean isIndexTemplates() {
+    return Boolean.parseBoolean(properties.getProperty("indexTemplates", "true"));
+  }
+
+  boolean isUpdateMappingsOnStart() {
+    return Boolean.parseBoolean(properties.getProperty("updateMappingsOnStart", "false"));
+  }
+
+  /**
+   * @return the names of the indices to be remapped at startup, all the Mica indices if "all"
+   */
+  List<String> getRemapOnStart() {
+    String remapOnStart = properties.getProperty("remapOnStart", "").trim();
+    if ("all".equals(remapOnStart)) return ESIndexTemplates.MICA_INDICES;
+    return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(remapOnStart);
+  }
+
+  boolean isIncrementalIndexing() {
+    return Boolean.parseBoolean(properties.getProperty("incrementalIndexing", "false"));
+  }
+
+  /**
+   * @return the version type of the indexed documents ("external" or "external_gte"), null if they are not versioned
+   */
+  @Nullable
+  String getVersionType() {
+    String versionType = properties.getProperty("versionType", "internal").trim();
+    return "external".equals(versionType) || "external_gte".equals(versionType) ? versionType : null;
+  }
+
+  /**
+   * @param indexName
+   * @return the document property the documents of the index are routed by, null if they are not
+   */
+  @Nullable
+  String getRoutingField(String indexName) {
+    String alias = IndexGenerations.aliasOf(indexName);
+    if (!Indexer.PUBLISHED_VARIABLE_INDEX.equals(alias) && !Indexer.PUBLISHED_HVARIABLE_INDEX.equals(alias)) return null;
+    String routingField = properties.getProperty("variableRouting", "").trim();
+    return "studyId".equals(routingField) || "datasetId".equals(routingField) ? routingField : null;
+  }
+
+  String getDeleteByQueryRequestsPerSecond() {
+    return properties.getProperty("deleteByQueryRequestsPerSecond", "-1").trim();
+  }
+
+  String getReindexRequestsPerSecond() {
+    return properties.getProperty("reindexRequestsPerSecond", "-1").trim();
+  }
+
+  boolean isSnapshotAfterReindex() {
+    return Boolean.parseBoolean(properties.getProperty("snapshotAfterReindex", "false"));
+  }
+
+  /**
+   * @return the folder of the snapshot repository on the cluster nodes, null if not configured
+   */
+  @Nullable
+  String getSnapshotLocation() {
+    String location = properties.getProperty("snapshotLocation", "").trim();
+    return location.isEmpty() ? null : location;
+  }
+
+  int getSnapshotRetention() {
+    return Integer.parseInt(properties.getProperty("snapshotRetention", "5"));
+  }
+
+  /**
+   * @return the age (in milliseconds) after which an interrupted reindex is started over instead of being resumed
+   */
+  long getReindexCheckpointMaxAge() {
+    return TimeUnit.HOURS.toMillis(Long.parseLong(properties.getProperty("reindexCheckpointMaxAge", "24")));
+  }
+
+  boolean isWriteBehind() {
+    return Boolean.parseBoolean(properties.getProperty("writeBehind", "false"));
+  }
+
+  int getWriteBehindMaxDocuments() {
+    return Integer.parseInt(properties.getProperty("writeBehindMaxDocuments", "1000"));
+  }
+
+  long getWriteBehindFlushInterval() {
+    return Long.parseLong(properties.getProperty("writeBehindFlushInterval", "1000"));
+  }
+
+  boolean isReindexBulkLoad() {
+    return Boolean.parseBoolean(properties.getProperty("reindexBulkLoad", "true"));
+  }
+
+  boolean isReindexForceMerge() {
+    return Boolean.parseBoolean(properties.getProperty("reindexForceMerge", "false"));
+  }
+
   //
   // Private methods
   //
@@ -212,14 +391,27 @@ public class ESSearchEngineService implements SearchEngineService {
       })
       .toArray(HttpHost[]::new);
 
-      RestClient restClient = RestClient.builder(httpHosts).build();
+      restClient = RestClient.builder(httpHosts).build();
 
-      JacksonJsonpMapper jacksonJsonpMapper = new JacksonJsonpMapper();
+      // documents are (de)serialized as by Mica's mapper, on a copy as the client reconfigures it, and on a single
+      // line as bulk bodies require
+      ObjectMapper transportMapper = getObjectMapper().copy().disable(SerializationFeature.INDENT_OUTPUT);
+      JacksonJsonpMapper jacksonJsonpMapper = new JacksonJsonpMapper(transportMapper);
       RestClientTransport transport = new RestClientTransport(restClient, jacksonJsonpMapper);
 
     client = new ElasticsearchClient(transport);
   }
 
+  private ObjectMapper createObjectMapper() {
+    if (configurationProvider == null || configurationProvider.getObjectMapper() == null) {
+      ObjectMapper mapper = new ObjectMapper();
+      mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+      mapper.findAndRegisterModules();
+      return mapper;
+    }
+    return configurationProvider.getObjectMapper();
+  }
+
   private boolean isDataNode() {
     return Boolean.parseBoolean(properties.getProperty("dataNode", "true"));
   }
@@ -243,7 +435,7 @@ public class ESSearchEngineService implements SearchEngineService {
   }
 
 
-  private File getWorkFolder() {
+  File getWorkFolder() {
     return getServiceFolder(WORK_DIR_PROPERTY);
   }
 
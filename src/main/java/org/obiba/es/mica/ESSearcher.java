@@ -40,6 +40,7 @@ import org.obiba.es.mica.results.ESResponseCountResults;
 import org.obiba.es.mica.results.ESResponseDocumentResults;
 import org.obiba.es.mica.support.AggregationParser;
 import org.obiba.es.mica.support.ESHitSourceMapHelper;
+import org.obiba.mica.spi.search.Indexer;
 import org.obiba.mica.spi.search.QueryScope;
 import org.obiba.mica.spi.search.Searcher;
 import org.obiba.mica.spi.search.support.EmptyQuery;
@@ -534,6 +535,7 @@ public class ESSearcher implements Searcher {
               new SortOptions.Builder().score(score -> score.order(co.elastic.clients.elasticsearch._types.SortOrder.Desc)).build();
 
       response = getClient().search(s -> s.index(indexName)
+        .routing(getRouting(indexName, termFilter))
         .query(esQuery)
         .from(from)
         .size(limit)
@@ -578,6 +580,7 @@ public class ESSearcher implements Searcher {
       co.elastic.clients.elasticsearch._types.query_dsl.Query finalQuery = execQuery;
 
       response = getClient().search(s -> s.index(indexName)
+        .routing(getRouting(indexName, termFilter))
         .query(finalQuery)
         .from(from)
         .size(limit)
@@ -631,7 +634,10 @@ public class ESSearcher implements Searcher {
     try {
       if (log.isTraceEnabled()) log.trace("Request /{}: {}/{}", datasetId, queryPart._get().toString(), aggregation._get().toString());
 
+      // harmonized variables routed by dataset are all in a single shard
+      String routing = "datasetId".equals(esSearchService.getRoutingField(Indexer.PUBLISHED_HVARIABLE_INDEX)) ? datasetId : null;
       SearchResponse<ObjectNode> response = getClient().search(s -> s.index("hvariable-published")
+          .routing(routing)
           .query(queryPart)
           .from(0)
           .size(0)
@@ -651,6 +657,19 @@ public class ESSearcher implements Searcher {
   // Private methods
   //
 
+  /**
+   * Documents routed by the filtered property are all in a single shard.
+   *
+   * @param indexName
+   * @param termFilter
+   * @return the routing of the searched documents, null if they are in any shard
+   */
+  @Nullable
+  private String getRouting(String indexName, @Nullable TermFilter termFilter) {
+    if (termFilter == null || termFilter.getValue() == null) return null;
+    return termFilter.getField().equals(esSearchService.getRoutingField(indexName)) ? termFilter.getValue() : null;
+  }
+
   private co.elastic.clients.elasticsearch._types.query_dsl.Query getPostFilter(TermFilter termFilter, IdFilter idFilter) {
     co.elastic.clients.elasticsearch._types.query_dsl.Query filter = null;
 
@@ -0,0 +1,432 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.Lists;
+import org.apache.http.client.config.RequestConfig;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.obiba.es.mica.support.IndexGenerations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Snapshots of the Mica indices in a shared file system repository, so that indices can be restored at the segment
+ * level instead of being rebuilt from Mica. The repository location has no default, it must be configured and listed
+ * in the "path.repo" setting of every node of the cluster.
+ * <p>
+ * Snapshots are named after what they contain, "mica" for all the indices or the index name, followed by their
+ * creation time. Once a new snapshot succeeds, only the most recent successful ones of a same name are kept.
+ */
+public class ESSnapshots {
+
+  private static final Logger log = LoggerFactory.getLogger(ESSnapshots.class);
+
+  private static final String REPOSITORY = "mica";
+
+  private static final String ALL_INDICES = "mica";
+
+  // restoring waits for the shards to be recovered
+  private static final RequestOptions RESTORE_OPTIONS = RequestOptions.DEFAULT.toBuilder()
+    .setRequestConfig(RequestConfig.custom().setSocketTimeout((int) TimeUnit.HOURS.toMillis(12)).build())
+    .build();
+
+  private static final long POLL_INTERVAL_SECONDS = 30;
+
+  private static final long SNAPSHOT_TIMEOUT_HOURS = 24;
+
+  private final ESSearchEngineService esSearchService;
+
+  // follows the snapshots in progress, to prune the old ones
+  private final ScheduledExecutorService scheduler;
+
+  private volatile boolean repositoryRegistered;
+
+  // registration is not retried once it failed, until restart
+  private boolean repositoryFailed;
+
+  ESSnapshots(ESSearchEngineService esSearchService) {
+    this.esSearchService = esSearchService;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "mica-es-snapshots");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Snapshot all the Mica indices without waiting.
+   *
+   * @return the snapshot name, null if it could not be started
+   */
+  @Nullable
+  public String snapshot() {
+    return snapshot(ALL_INDICES, ESIndexTemplates.MICA_INDICES);
+  }
+
+  /**
+   * Snapshot an index without waiting.
+   *
+   * @param indexName
+   * @return the snapshot name, null if it could not be started
+   */
+  @Nullable
+  public String snapshot(String indexName) {
+    return snapshot(IndexGenerations.aliasOf(indexName), Collections.singletonList(indexName));
+  }
+
+  /**
+   * Restore the indices of a snapshot: each index is restored as a new generation and, once all of them are, the
+   * indices are switched to the restored generations. The current generations are only dropped then, a failed
+   * restore leaves them untouched.
+   *
+   * @param snapshotName
+   * @return true if the indices were restored
+   */
+  public boolean restore(String snapshotName) {
+    Snapshot snapshot = getSnapshot(snapshotName);
+    if (snapshot == null) {
+      log.error("Snapshot {} not found", snapshotName);
+      return false;
+    }
+    if (!"SUCCESS".equals(snapshot.getState())) {
+      log.error("Snapshot {} cannot be restored, its state is {}", snapshotName, snapshot.getState());
+      return false;
+    }
+    Map<String, String> indices = new LinkedHashMap<>();
+    for (String physicalName : snapshot.getIndices()) {
+      if (indices.put(IndexGenerations.aliasOf(physicalName), physicalName) != null) {
+        log.error("Snapshot {} holds several generations of index {}, it cannot be restored", snapshotName,
+          IndexGenerations.aliasOf(physicalName));
+        return false;
+      }
+    }
+
+    ESIndexer indexer = esSearchService.getIndexer();
+    Map<String, String> restored = new LinkedHashMap<>();
+    for (Map.Entry<String, String> index : indices.entrySet()) {
+      String generationName = indexer.getNextGenerationName(index.getKey());
+      // a partially restored generation is dropped as well
+      restored.put(index.getKey(), generationName);
+      if (!restore(snapshotName, index.getValue(), generationName)) {
+        log.error("Failed to restore snapshot {}, the current indices are kept", snapshotName);
+        restored.values().forEach(this::deleteRestored);
+        return false;
+      }
+    }
+
+    boolean switched = true;
+    for (Map.Entry<String, String> index : restored.entrySet()) {
+      switched = indexer.switchToRestored(index.getKey(), index.getValue()) && switched;
+    }
+    if (switched) log.info("Restored indices {} from snapshot {}", restored.keySet(), snapshotName);
+    return switched;
+  }
+
+  /**
+   * @return the snapshots of the repository, the oldest first
+   */
+  public List<Snapshot> list() {
+    if (!registerRepository()) return Lists.newArrayList();
+    try {
+      Response response = esSearchService.getRestClient().performRequest(new Request("GET", "/_snapshot/" + REPOSITORY + "/_all"));
+      try (InputStream content = response.getEntity().getContent()) {
+        List<Snapshot> snapshots = Lists.newArrayList();
+        esSearchService.getObjectMapper().readTree(content).path("snapshots").forEach(node -> snapshots.add(Snapshot.of(node)));
+        snapshots.sort(Comparator.comparingLong(Snapshot::getStartTime));
+        return snapshots;
+      }
+    } catch (IOException e) {
+      log.error("Failed to list snapshots - {}", e);
+    }
+    return Lists.newArrayList();
+  }
+
+  /**
+   * @param snapshotName
+   * @return the snapshot, null if not found
+   */
+  @Nullable
+  public Snapshot getSnapshot(String snapshotName) {
+    if (!registerRepository()) return null;
+    try {
+      Response response = esSearchService.getRestClient().performRequest(new Request("GET", "/_snapshot/" + REPOSITORY + "/" + snapshotName));
+      try (InputStream content = response.getEntity().getContent()) {
+        JsonNode snapshots = esSearchService.getObjectMapper().readTree(content).path("snapshots");
+        return snapshots.size() == 0 ? null : Snapshot.of(snapshots.get(0));
+      }
+    } catch (ResponseException e) {
+      if (e.getResponse().getStatusLine().getStatusCode() != 404) log.error("Failed to get snapshot {} - {}", snapshotName, e);
+    } catch (IOException e) {
+      log.error("Failed to get snapshot {} - {}", snapshotName, e);
+    }
+    return null;
+  }
+
+  /**
+   * Stop following the snapshots in progress, the old snapshots are then pruned after the next one.
+   */
+  void stop() {
+    scheduler.shutdownNow();
+  }
+
+  //
+  // Private methods
+  //
+
+  /**
+   * Restore a physical index of a snapshot under another name, without its aliases.
+   *
+   * @param snapshotName
+   * @param physicalName
+   * @param generationName
+   * @return true if the index was restored
+   */
+  private boolean restore(String snapshotName, String physicalName, String generationName) {
+    ObjectNode body = esSearchService.getObjectMapper().createObjectNode()
+      .put("include_global_state", false)
+      .put("include_aliases", false)
+      .put("rename_pattern", ".+")
+      .put("rename_replacement", generationName);
+    body.putArray("indices").add(physicalName);
+    Request request = new Request("POST", "/_snapshot/" + REPOSITORY + "/" + snapshotName + "/_restore");
+    request.addParameter("wait_for_completion", "true");
+    request.setJsonEntity(body.toString());
+    request.setOptions(RESTORE_OPTIONS);
+    try {
+      Response response = esSearchService.getRestClient().performRequest(request);
+      try (InputStream content = response.getEntity().getContent()) {
+        JsonNode shards = esSearchService.getObjectMapper().readTree(content).at("/snapshot/shards");
+        if (shards.path("failed").asInt() == 0) return true;
+        log.error("Failed to restore {} of snapshot {} as {} - {} shards failed", physicalName, snapshotName,
+          generationName, shards.path("failed").asInt());
+      }
+    } catch (IOException e) {
+      log.error("Failed to restore {} of snapshot {} as {} - {}", physicalName, snapshotName, generationName, e);
+    }
+    return false;
+  }
+
+  private void deleteRestored(String generationName) {
+    Request request = new Request("DELETE", "/" + generationName);
+    request.addParameter("ignore_unavailable", "true");
+    try {
+      esSearchService.getRestClient().performRequest(request);
+    } catch (IOException e) {
+      log.error("Failed to delete restored index {} - {}", generationName, e);
+    }
+  }
+
+  @Nullable
+  private String snapshot(String label, Collection<String> indexNames) {
+    if (!registerRepository()) return null;
+
+    String snapshotName = label + "." + System.currentTimeMillis();
+    ObjectNode body = esSearchService.getObjectMapper().createObjectNode()
+      .put("include_global_state", false)
+      .put("ignore_unavailable", true);
+    // the aliases resolve to the current generations, a name that is not an alias is an index created before generations
+    ArrayNode indices = body.putArray("indices");
+    indexNames.forEach(indices::add);
+    Request request = new Request("PUT", "/_snapshot/" + REPOSITORY + "/" + snapshotName);
+    request.addParameter("wait_for_completion", "false");
+    request.setJsonEntity(body.toString());
+    try {
+      esSearchService.getRestClient().performRequest(request);
+      log.info("Started snapshot {}", snapshotName);
+      deleteOldSnapshotsWhenDone(label, snapshotName, System.currentTimeMillis() + TimeUnit.HOURS.toMillis(SNAPSHOT_TIMEOUT_HOURS));
+      return snapshotName;
+    } catch (IOException e) {
+      log.error("Failed to start snapshot {} - {}", snapshotName, e);
+    }
+    return null;
+  }
+
+  /**
+   * Wait in the background for a snapshot to complete, then delete the old snapshots of a same name if it succeeded.
+   *
+   * @param label
+   * @param snapshotName
+   * @param deadline time after which the snapshot is not waited for anymore
+   */
+  private void deleteOldSnapshotsWhenDone(String label, String snapshotName, long deadline) {
+    try {
+      scheduler.schedule(() -> {
+        Snapshot snapshot = getSnapshot(snapshotName);
+        if (snapshot == null || "IN_PROGRESS".equals(snapshot.getState())) {
+          if (System.currentTimeMillis() < deadline) deleteOldSnapshotsWhenDone(label, snapshotName, deadline);
+          else log.warn("Snapshot {} did not complete, previous snapshots are kept", snapshotName);
+        } else if ("SUCCESS".equals(snapshot.getState())) {
+          deleteOldSnapshots(label);
+        } else {
+          log.warn("Snapshot {} ended with state {}, previous snapshots are kept", snapshotName, snapshot.getState());
+        }
+      }, POLL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    } catch (RejectedExecutionException e) {
+      log.debug("Snapshot {} is not followed anymore", snapshotName);
+    }
+  }
+
+  /**
+   * Delete the snapshots of a same name that are older than the most recent successful ones to be retained.
+   *
+   * @param label
+   */
+  private void deleteOldSnapshots(String label) {
+    for (Snapshot snapshot : getExpired(list(), label, esSearchService.getSnapshotRetention())) {
+      try {
+        esSearchService.getRestClient().performRequest(new Request("DELETE", "/_snapshot/" + REPOSITORY + "/" + snapshot.getName()));
+        log.debug("Deleted snapshot {}", snapshot.getName());
+      } catch (IOException e) {
+        log.error("Failed to delete snapshot {} - {}", snapshot.getName(), e);
+      }
+    }
+  }
+
+  /**
+   * Select the snapshots of a same name that are older than the most recent successful ones to be retained, the
+   * snapshots in progress are kept.
+   *
+   * @param snapshots the snapshots, the oldest first
+   * @param label
+   * @param retention number of successful snapshots to be retained, at least one is
+   * @return
+   */
+  static List<Snapshot> getExpired(List<Snapshot> snapshots, String label, int retention) {
+    List<Snapshot> labelled = snapshots.stream()
+      .filter(snapshot -> label.equals(snapshot.getLabel()))
+      .collect(Collectors.toList());
+    List<Snapshot> successful = labelled.stream()
+      .filter(snapshot -> "SUCCESS".equals(snapshot.getState()))
+      .collect(Collectors.toList());
+    int retained = Math.max(1, retention);
+    if (successful.size() <= retained) return Collections.emptyList();
+
+    long oldestRetained = successful.get(successful.size() - retained).getStartTime();
+    return labelled.stream()
+      .filter(snapshot -> snapshot.getStartTime() < oldestRetained && !"IN_PROGRESS".equals(snapshot.getState()))
+      .collect(Collectors.toList());
+  }
+
+  /**
+   * Register the file system repository once. A failed registration is reported once and not retried: the location
+   * is missing or not listed in the path.repo setting of the nodes, which is only changed with a restart.
+   *
+   * @return true if the repository can be used
+   */
+  private synchronized boolean registerRepository() {
+    if (repositoryRegistered) return true;
+    if (repositoryFailed) return false;
+
+    String location = esSearchService.getSnapshotLocation();
+    if (location == null) {
+      log.warn("Snapshots are disabled, no snapshotLocation is configured");
+      repositoryFailed = true;
+      return false;
+    }
+    ObjectNode body = esSearchService.getObjectMapper().createObjectNode().put("type", "fs");
+    body.putObject("settings")
+      .put("location", location)
+      .put("compress", true);
+    Request request = new Request("PUT", "/_snapshot/" + REPOSITORY);
+    request.setJsonEntity(body.toString());
+    try {
+      esSearchService.getRestClient().performRequest(request);
+      repositoryRegistered = true;
+    } catch (IOException e) {
+      log.warn("Failed to register snapshot repository {}, is it listed in path.repo of every node? Snapshots are disabled - {}", location, e);
+      repositoryFailed = true;
+    }
+    return repositoryRegistered;
+  }
+
+  public static class Snapshot {
+
+    private final String name;
+
+    private final String state;
+
+    private final Set<String> indices;
+
+    private final long startTime;
+
+    private Snapshot(String name, String state, Set<String> indices, long startTime) {
+      this.name = name;
+      this.state = state;
+      this.indices = indices;
+      this.startTime = startTime;
+    }
+
+    static Snapshot of(JsonNode node) {
+      Set<String> indices = new LinkedHashSet<>();
+      node.path("indices").forEach(index -> indices.add(index.asText()));
+      return new Snapshot(node.path("snapshot").asText(), node.path("state").asText(), indices,
+        node.path("start_time_in_millis").asLong());
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return what the snapshot contains: "mica" for all the indices, otherwise the index name
+     */
+    public String getLabel() {
+      int sep = name.lastIndexOf('.');
+      return sep > 0 ? name.substring(0, sep) : name;
+    }
+
+    /**
+     * @return IN_PROGRESS, SUCCESS, FAILED or PARTIAL
+     */
+    public String getState() {
+      return state;
+    }
+
+    /**
+     * @return the physical indices in the snapshot
+     */
+    public Set<String> getIndices() {
+      return indices;
+    }
+
+    public long getStartTime() {
+      return startTime;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle on an operation run in the background by the cluster (delete by query, reindex...).
+ */
+public class ESTask {
+
+  private static final Logger log = LoggerFactory.getLogger(ESTask.class);
+
+  private static final long MAX_POLL_DELAY = 5000;
+
+  private final ESSearchEngineService esSearchService;
+
+  private final String id;
+
+  // status of the completed task
+  private volatile JsonNode result;
+
+  ESTask(ESSearchEngineService esSearchService, String id) {
+    this.esSearchService = esSearchService;
+    this.id = id;
+  }
+
+  /**
+   * @return the task identifier, "node:number"
+   */
+  public String getId() {
+    return id;
+  }
+
+  public boolean isCompleted() {
+    return getStatus().path("completed").asBoolean(false);
+  }
+
+  /**
+   * @return true if the task completed without error nor failures
+   */
+  public boolean isSuccessful() {
+    JsonNode status = getStatus();
+    return status.path("completed").asBoolean(false) && !status.has("error")
+      && status.path("response").path("failures").size() == 0;
+  }
+
+  /**
+   * Get the task status: its progress while it runs, the "response" of the operation once completed. A task whose
+   * outcome is unknown is completed with an "error". The result the cluster keeps of a completed task is deleted once
+   * read, it is cached by this handle.
+   *
+   * @return the status, a missing node if it could not be retrieved
+   */
+  public JsonNode getStatus() {
+    if (result != null) return result;
+
+    Request request = new Request("GET", "/_tasks/" + id);
+    try {
+      Response response = esSearchService.getRestClient().performRequest(request);
+      try (InputStream content = response.getEntity().getContent()) {
+        JsonNode status = esSearchService.getObjectMapper().readTree(content);
+        if (status.path("completed").asBoolean(false)) {
+          result = status;
+          deleteResult();
+        }
+        return status;
+      }
+    } catch (ResponseException e) {
+      if (e.getResponse().getStatusLine().getStatusCode() == 404) {
+        // the result of a completed background task is stored in the .tasks index, the task was lost (its node left
+        // for instance)
+        ObjectNode lost = esSearchService.getObjectMapper().createObjectNode().put("completed", true);
+        lost.putObject("error")
+          .put("type", "task_lost")
+          .put("reason", "Task " + id + " not found, its outcome is unknown");
+        result = lost;
+        return result;
+      }
+      log.error("Failed to get status of task {} - {}", id, e);
+    } catch (IOException e) {
+      log.error("Failed to get status of task {} - {}", id, e);
+    }
+    return MissingNode.getInstance();
+  }
+
+  /**
+   * Wait for the task to complete, polling its status less and less often.
+   *
+   * @param timeout
+   * @param unit
+   * @return true if the task completed before the timeout
+   * @throws InterruptedException
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    long delay = 100;
+    while (!isCompleted()) {
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (remaining <= 0) return false;
+      Thread.sleep(Math.min(delay, remaining));
+      delay = Math.min(delay * 2, MAX_POLL_DELAY);
+    }
+    return true;
+  }
+
+  /**
+   * Delete the result of the completed task from the .tasks index, where it would be kept forever.
+   */
+  private void deleteResult() {
+    try {
+      esSearchService.getRestClient().performRequest(new Request("DELETE", "/.tasks/_doc/" + id));
+    } catch (ResponseException e) {
+      // not stored, the task completed before its status was read for instance
+      if (e.getResponse().getStatusLine().getStatusCode() != 404) log.warn("Failed to delete result of task {} - {}", id, e.getMessage());
+    } catch (IOException e) {
+      log.warn("Failed to delete result of task {} - {}", id, e.getMessage());
+    }
+  }
+
+  @Override
+  public String toString() {
+    return id;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Buffers single document writes per index and sends them as bulk requests, when the number of pending documents of
+ * an index reaches the configured limit or periodically. Successive writes of a same document are coalesced: only
+ * the last one is sent. Documents are serialized when they are buffered, later changes of the entities are not
+ * written, and searches do not see them before the buffer is flushed.
+ */
+class ESWriteBehindBuffer {
+
+  private static final Logger log = LoggerFactory.getLogger(ESWriteBehindBuffer.class);
+
+  private final ESSearchEngineService esSearchService;
+
+  private final Function<String, ESBulkProcessor> bulkProcessorFactory;
+
+  private final int maxDocuments;
+
+  // pending writes by index name and document id, guarded by this
+  private final Map<String, Map<String, PendingWrite>> pendingWrites = new HashMap<>();
+
+  // flushes of a same index are serialized so that writes are applied in order
+  private final ConcurrentMap<String, Object> flushLocks = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService scheduler;
+
+  ESWriteBehindBuffer(ESSearchEngineService esSearchService, Function<String, ESBulkProcessor> bulkProcessorFactory,
+                      int maxDocuments, long flushIntervalMillis) {
+    this.esSearchService = esSearchService;
+    this.bulkProcessorFactory = bulkProcessorFactory;
+    this.maxDocuments = Math.max(1, maxDocuments);
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "mica-es-write-behind");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long interval = Math.max(1, flushIntervalMillis);
+    scheduler.scheduleWithFixedDelay(this::flushSafely, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Buffer the write of a document, serialized now.
+   *
+   * @param indexName
+   * @param id
+   * @param routing
+   * @param document
+   */
+  void index(String indexName, String id, @Nullable String routing, Object document) {
+    String source;
+    try {
+      source = esSearchService.getObjectWriter(document.getClass()).writeValueAsString(document);
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot serialize " + document + " to ElasticSearch", e);
+    }
+    add(indexName, id, new PendingWrite(routing, ESBulkProcessor.getVersion(esSearchService, document), source));
+  }
+
+  void delete(String indexName, String id, @Nullable String routing) {
+    add(indexName, id, new PendingWrite(routing, null, null));
+  }
+
+  /**
+   * Send the pending writes of an index.
+   *
+   * @param indexName
+   */
+  void flush(String indexName) {
+    synchronized (getFlushLock(indexName)) {
+      Map<String, PendingWrite> writes;
+      synchronized (this) {
+        writes = pendingWrites.remove(indexName);
+      }
+      if (writes == null || writes.isEmpty()) return;
+
+      log.debug("Flushing {} pending writes of index {}", writes.size(), indexName);
+      try (ESBulkProcessor bulkProcessor = bulkProcessorFactory.apply(indexName)) {
+        writes.forEach((id, write) -> bulkProcessor.append(id, getAction(id, write), write.source));
+      }
+    }
+  }
+
+  /**
+   * Send the pending writes of all indices.
+   */
+  void flush() {
+    List<String> indexNames;
+    synchronized (this) {
+      indexNames = new ArrayList<>(pendingWrites.keySet());
+    }
+    indexNames.forEach(this::flush);
+  }
+
+  /**
+   * Forget the pending writes of an index, when it is dropped.
+   *
+   * @param indexName
+   */
+  synchronized void discard(String indexName) {
+    pendingWrites.remove(indexName);
+  }
+
+  /**
+   * Stop the periodic flush and send all the pending writes.
+   */
+  void close() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  //
+  // Private methods
+  //
+
+  private void add(String indexName, String id, PendingWrite write) {
+    boolean full;
+    synchronized (this) {
+      Map<String, PendingWrite> writes = pendingWrites.computeIfAbsent(indexName, name -> new LinkedHashMap<>());
+      // re-insert so that the document takes the position of its last write
+      PendingWrite previous = writes.remove(id);
+      // a document written without routing keeps the one it was buffered with, the routing of a document that is
+      // not indexed yet cannot be looked up
+      if (write.routing == null && previous != null && previous.routing != null) {
+        write = new PendingWrite(previous.routing, write.version, write.source);
+      }
+      writes.put(id, write);
+      full = writes.size() >= maxDocuments;
+    }
+    if (full) flush(indexName);
+  }
+
+  private String getAction(String id, PendingWrite write) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      ESBulkProcessor.writeAction(esSearchService, out, write.source == null ? "delete" : "index", id, write.routing, write.version);
+    } catch (IOException e) {
+      throw new RuntimeException("Cannot serialize action on " + id, e);
+    }
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  private void flushSafely() {
+    try {
+      flush();
+    } catch (Exception e) {
+      log.error("Failed to flush pending writes - {}", e);
+    }
+  }
+
+  private Object getFlushLock(String indexName) {
+    return flushLocks.computeIfAbsent(indexName, name -> new Object());
+  }
+
+  private static class PendingWrite {
+
+    private final String routing;
+
+    private final Long version;
+
+    // null for a deletion
+    private final String source;
+
+    private PendingWrite(String routing, Long version, String source) {
+      this.routing = routing;
+      this.version = version;
+      this.source = source;
+    }
+  }
+}
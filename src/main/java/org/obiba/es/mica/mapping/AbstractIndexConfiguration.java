@@ -11,16 +11,25 @@
 package org.obiba.es.mica.mapping;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.obiba.es.mica.ESSearchEngineService;
+import org.obiba.es.mica.support.IndexGenerations;
 import org.obiba.mica.spi.search.ConfigurationProvider;
 import org.obiba.mica.spi.search.Indexer;
 import org.obiba.mica.spi.search.SearchEngineService;
@@ -32,8 +41,11 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.indices.PutMappingRequest;
 
 public abstract class AbstractIndexConfiguration implements Indexer.IndexConfigurationListener {
   private static final Logger log = LoggerFactory.getLogger(AbstractIndexConfiguration.class);
@@ -48,6 +60,9 @@ public abstract class AbstractIndexConfiguration implements Indexer.IndexConfigu
 
   private final ConfigurationProvider configurationProvider;
 
+  // last mappings built per index, with the fingerprint of what they were built from
+  private final ConcurrentMap<String, CachedMappings> mappingsCache = new ConcurrentHashMap<>();
+
   AbstractIndexConfiguration(ConfigurationProvider configurationProvider) {
     this.configurationProvider = configurationProvider;
   }
@@ -56,7 +71,75 @@ public abstract class AbstractIndexConfiguration implements Indexer.IndexConfigu
     return ((ESSearchEngineService) searchEngineService).getClient();
   }
 
+  @Override
+  public void onIndexCreated(SearchEngineService searchEngineService, String indexName) {
+    ElasticsearchClient client = getClient(searchEngineService);
+    for (String mapping : getMappings(getAlias(indexName))) {
+      try {
+        client.indices().putMapping(PutMappingRequest.of(r -> r.index(indexName).withJson(new StringReader(mapping))));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Get the mappings of a Mica index, in the order they are to be applied. The mappings are built again only when
+   * the taxonomy, the locales or the roles they are built from have changed.
+   *
+   * @param alias Mica index name
+   * @return the mappings as JSON, empty if the index is not configured here
+   */
+  public List<String> getMappings(String alias) {
+    String fingerprint = getFingerprint();
+    CachedMappings cached = mappingsCache.get(alias);
+    if (cached != null && cached.fingerprint.equals(fingerprint)) return cached.mappings;
+
+    try {
+      List<String> mappings = Collections.unmodifiableList(
+        createMappings(alias).stream().map(Strings::toString).collect(Collectors.toList()));
+      mappingsCache.put(alias, new CachedMappings(fingerprint, mappings));
+      return mappings;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Build the mappings of a Mica index.
+   *
+   * @param alias Mica index name
+   * @return the mappings, empty if the index is not configured here
+   * @throws IOException
+   */
+  protected abstract List<XContentBuilder> createMappings(String alias) throws IOException;
+
+  /**
+   * Get the Mica index name of the physical index being configured.
+   *
+   * @param indexName
+   * @return
+   */
+  protected String getAlias(String indexName) {
+    return IndexGenerations.aliasOf(indexName);
+  }
+
+  /**
+   * Get a copy of the taxonomy of the configured target, so that the vocabularies added to build the mappings do not
+   * alter the shared taxonomy nor the fingerprint computed from it.
+   *
+   * @return
+   */
   protected Taxonomy getTaxonomy() {
+    Taxonomy taxonomy = getSharedTaxonomy();
+    Taxonomy copy = new Taxonomy(taxonomy.getName());
+    copy.setTitle(taxonomy.getTitle());
+    copy.setDescription(taxonomy.getDescription());
+    if (taxonomy.getVocabularies() != null) copy.setVocabularies(new ArrayList<>(taxonomy.getVocabularies()));
+    return copy;
+  }
+
+  private Taxonomy getSharedTaxonomy() {
     Taxonomy taxonomy = null;
     switch (getTarget()) {
       case VARIABLE:
@@ -198,6 +281,34 @@ public abstract class AbstractIndexConfiguration implements Indexer.IndexConfigu
     }
   }
 
+  /**
+   * Hash what the mappings are built from: the vocabularies of the taxonomy (the configurations add their own ones
+   * to a copy of it), the locales and the roles.
+   *
+   * @return
+   */
+  private String getFingerprint() {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    if (getTarget() != null) {
+      Taxonomy taxonomy = getSharedTaxonomy();
+      if (taxonomy.getVocabularies() != null) {
+        for (Vocabulary vocabulary : taxonomy.getVocabularies()) {
+          hasher.putUnencodedChars(vocabulary.getName()).putByte((byte) 0);
+          if (vocabulary.getAttributes() != null) {
+            new TreeMap<>(vocabulary.getAttributes()).forEach((key, value) ->
+              hasher.putUnencodedChars(key).putByte((byte) 1).putUnencodedChars(String.valueOf(value)).putByte((byte) 0));
+          }
+          hasher.putBoolean(vocabulary.hasTerms());
+        }
+      }
+    }
+    hasher.putByte((byte) 2);
+    configurationProvider.getLocales().forEach(locale -> hasher.putUnencodedChars(locale).putByte((byte) 0));
+    hasher.putByte((byte) 2);
+    configurationProvider.getRoles().forEach(role -> hasher.putUnencodedChars(role).putByte((byte) 0));
+    return hasher.hash().toString();
+  }
+
   private String resolveType(String type) {
     if (!Strings.isNullOrEmpty(type)) {
       switch (type.toLowerCase()) {
@@ -260,7 +371,8 @@ public abstract class AbstractIndexConfiguration implements Indexer.IndexConfigu
 
   private class SchemaNode {
     String name;
-    private List<SchemaNode> children = Lists.newArrayList();
+    // by name, in insertion order
+    private final Map<String, SchemaNode> children = Maps.newLinkedHashMap();
     private Vocabulary vocabulary;
 
     public SchemaNode() {
@@ -284,19 +396,20 @@ public abstract class AbstractIndexConfiguration implements Indexer.IndexConfigu
     }
 
     public Optional<SchemaNode> getChild(String name) {
-      return children.stream().filter(c -> c.getName().equals(name)).findFirst();
+      return Optional.ofNullable(children.get(name));
     }
 
+    /**
+     * Add a child node, replacing the child of the same name if any (a field cannot be mapped twice).
+     *
+     * @param node
+     */
     public void addChild(SchemaNode node) {
-      children.add(node);
+      children.put(node.getName(), node);
     }
 
-    public List<SchemaNode> getChildren() {
-      return children;
-    }
-
-    public void setChildren(List<SchemaNode> children) {
-      this.children = children;
+    public Collection<SchemaNode> getChildren() {
+      return children.values();
     }
 
     public Vocabulary getVocabulary() {
@@ -309,6 +422,18 @@ public abstract class AbstractIndexConfiguration implements Indexer.IndexConfigu
   }
 
 
+  private static class CachedMappings {
+
+    private final String fingerprint;
+
+    private final List<String> mappings;
+
+    private CachedMappings(String fingerprint, List<String> mappings) {
+      this.fingerprint = fingerprint;
+      this.mappings = mappings;
+    }
+  }
+
   public class VocabularyBuilder {
     String name;
     Map<String, String> attributes = Maps.newHashMap();
@@ -11,19 +11,16 @@
 package org.obiba.es.mica.mapping;
 
 import com.google.common.collect.Lists;
-import org.elasticsearch.common.Strings;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentFactory;
 import org.obiba.mica.spi.search.ConfigurationProvider;
 import org.obiba.mica.spi.search.Indexer;
-import org.obiba.mica.spi.search.SearchEngineService;
 import org.obiba.mica.spi.search.TaxonomyTarget;
 import org.obiba.opal.core.domain.taxonomy.Taxonomy;
 
-import co.elastic.clients.elasticsearch.indices.PutMappingRequest;
-
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
 
 public class DatasetIndexConfiguration extends AbstractIndexConfiguration {
 
@@ -32,20 +29,12 @@ public class DatasetIndexConfiguration extends AbstractIndexConfiguration {
   }
 
   @Override
-  public void onIndexCreated(SearchEngineService searchEngineService, String indexName) {
-    
-
-    if (Indexer.DRAFT_DATASET_INDEX.equals(indexName) ||
-        Indexer.PUBLISHED_DATASET_INDEX.equals(indexName)) {
-      try {
-        XContentBuilder properties = createMappingProperties();
-        getClient(searchEngineService)
-          .indices()
-          .putMapping(PutMappingRequest.of(r -> r.index(indexName).withJson(new StringReader(Strings.toString(properties)))));
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+  protected List<XContentBuilder> createMappings(String alias) throws IOException {
+    if (Indexer.DRAFT_DATASET_INDEX.equals(alias) ||
+        Indexer.PUBLISHED_DATASET_INDEX.equals(alias)) {
+      return Collections.singletonList(createMappingProperties());
     }
+    return Collections.emptyList();
   }
 
   private XContentBuilder createMappingProperties() throws IOException {
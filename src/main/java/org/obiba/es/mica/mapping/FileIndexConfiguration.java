@@ -11,19 +11,16 @@
 package org.obiba.es.mica.mapping;
 
 import org.elasticsearch.client.RequestOptions;
-import org.elasticsearch.common.Strings;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentFactory;
 import org.obiba.mica.spi.search.ConfigurationProvider;
 import org.obiba.mica.spi.search.Indexer;
-import org.obiba.mica.spi.search.SearchEngineService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import co.elastic.clients.elasticsearch.indices.PutMappingRequest;
-
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
 
 public class FileIndexConfiguration extends AbstractIndexConfiguration {
   private static final Logger log = LoggerFactory.getLogger(FileIndexConfiguration.class);
@@ -33,23 +30,16 @@ public class FileIndexConfiguration extends AbstractIndexConfiguration {
   }
 
   @Override
-  public void onIndexCreated(SearchEngineService searchEngineService, String indexName) {
-    if (Indexer.ATTACHMENT_DRAFT_INDEX.equals(indexName) ||
-        Indexer.ATTACHMENT_PUBLISHED_INDEX.equals(indexName)) {
-      try {
-        String attachmentField = Indexer.ATTACHMENT_DRAFT_INDEX.equals(indexName)
-            ? "attachment"
-            : "publishedAttachment";
-
-        XContentBuilder properties = createMappingProperties(Indexer.ATTACHMENT_TYPE, attachmentField);
-        
-        getClient(searchEngineService)
-          .indices()
-          .putMapping(PutMappingRequest.of(r -> r.index(indexName).withJson(new StringReader(Strings.toString(properties)))));
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+  protected List<XContentBuilder> createMappings(String alias) throws IOException {
+    if (Indexer.ATTACHMENT_DRAFT_INDEX.equals(alias) ||
+        Indexer.ATTACHMENT_PUBLISHED_INDEX.equals(alias)) {
+      String attachmentField = Indexer.ATTACHMENT_DRAFT_INDEX.equals(alias)
+          ? "attachment"
+          : "publishedAttachment";
+
+      return Collections.singletonList(createMappingProperties(Indexer.ATTACHMENT_TYPE, attachmentField));
     }
+    return Collections.emptyList();
   }
 
   private XContentBuilder createMappingProperties(String type, String attachmentField) throws IOException {
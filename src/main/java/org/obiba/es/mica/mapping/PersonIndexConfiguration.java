@@ -10,19 +10,16 @@
 
 package org.obiba.es.mica.mapping;
 
-import org.elasticsearch.common.Strings;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentFactory;
 import org.obiba.mica.spi.search.ConfigurationProvider;
 import org.obiba.mica.spi.search.Indexer;
-import org.obiba.mica.spi.search.SearchEngineService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import co.elastic.clients.elasticsearch.indices.PutMappingRequest;
-
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
 
 public class PersonIndexConfiguration extends AbstractIndexConfiguration {
   private static final Logger log = LoggerFactory.getLogger(PersonIndexConfiguration.class);
@@ -32,18 +29,11 @@ public class PersonIndexConfiguration extends AbstractIndexConfiguration {
   }
 
   @Override
-  public void onIndexCreated(SearchEngineService searchEngineService, String indexName) {
-    if (Indexer.PERSON_INDEX.equals(indexName)) {      
-      try {
-        XContentBuilder properties = createMappingProperties(Indexer.PERSON_TYPE);
-
-        getClient(searchEngineService)
-          .indices()
-          .putMapping(PutMappingRequest.of(r -> r.index(indexName).withJson(new StringReader(Strings.toString(properties)))));
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+  protected List<XContentBuilder> createMappings(String alias) throws IOException {
+    if (Indexer.PERSON_INDEX.equals(alias)) {
+      return Collections.singletonList(createMappingProperties(Indexer.PERSON_TYPE));
     }
+    return Collections.emptyList();
   }
 
   private XContentBuilder createMappingProperties(String type) throws IOException {
@@ -10,20 +10,17 @@
 
 package org.obiba.es.mica.mapping;
 
-import org.elasticsearch.common.Strings;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentFactory;
 import org.obiba.mica.spi.search.ConfigurationProvider;
 import org.obiba.mica.spi.search.Indexer;
-import org.obiba.mica.spi.search.SearchEngineService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.bind.annotation.GetMapping;
 
-import co.elastic.clients.elasticsearch.indices.PutMappingRequest;
-
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Stream;
 
 public class TaxonomyIndexConfiguration extends AbstractIndexConfiguration {
@@ -35,19 +32,9 @@ public class TaxonomyIndexConfiguration extends AbstractIndexConfiguration {
   }
 
   @Override
-  public void onIndexCreated(SearchEngineService searchEngineService, String indexName) {
-    try {
-      XContentBuilder mapping = getMappingFromIndexName(indexName);
-
-      if (mapping != null) {
-        getClient(searchEngineService)
-          .indices()
-          .putMapping(PutMappingRequest.of(r -> r.index(indexName).withJson(new StringReader(Strings.toString(mapping)))));
-      }
-      
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+  protected List<XContentBuilder> createMappings(String alias) throws IOException {
+    XContentBuilder mapping = getMappingFromIndexName(alias);
+    return mapping == null ? Collections.emptyList() : Collections.singletonList(mapping);
   }
 
   private XContentBuilder getMappingFromIndexName(String indexName) throws IOException {
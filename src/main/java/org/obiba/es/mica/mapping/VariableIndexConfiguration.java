@@ -10,18 +10,15 @@
 
 package org.obiba.es.mica.mapping;
 
-import org.elasticsearch.common.Strings;
 import org.elasticsearch.xcontent.XContentBuilder;
 import org.elasticsearch.xcontent.XContentFactory;
 import org.obiba.mica.spi.search.ConfigurationProvider;
 import org.obiba.mica.spi.search.Indexer;
-import org.obiba.mica.spi.search.SearchEngineService;
-
-import co.elastic.clients.elasticsearch.ElasticsearchClient;
-import co.elastic.clients.elasticsearch.indices.PutMappingRequest;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.stream.Stream;
 
 public class VariableIndexConfiguration extends AbstractIndexConfiguration {
@@ -31,31 +28,14 @@ public class VariableIndexConfiguration extends AbstractIndexConfiguration {
   }
 
   @Override
-  public void onIndexCreated(SearchEngineService searchEngineService, String indexName) {
-    if (Indexer.PUBLISHED_VARIABLE_INDEX.equals(indexName)) {
-      setMappingProperties(getClient(searchEngineService), indexName);
-    }
-    if (Indexer.PUBLISHED_HVARIABLE_INDEX.equals(indexName)) {
-      setMappingProperties(getClient(searchEngineService), indexName);
-    }
-  }
-
-  private void setMappingProperties(ElasticsearchClient client, String indexName) {
-    try {
-
-      XContentBuilder harmonizedmapping = createMappingProperties(Indexer.HARMONIZED_VARIABLE_TYPE);
-      XContentBuilder defaultMapping = createMappingProperties(Indexer.VARIABLE_TYPE);
-
-      client
-        .indices()
-        .putMapping(PutMappingRequest.of(r -> r.index(indexName).withJson(new StringReader(Strings.toString(harmonizedmapping)))));
-
-      client
-        .indices()
-        .putMapping(PutMappingRequest.of(r -> r.index(indexName).withJson(new StringReader(Strings.toString(defaultMapping)))));
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  protected List<XContentBuilder> createMappings(String alias) throws IOException {
+    if (Indexer.PUBLISHED_VARIABLE_INDEX.equals(alias) ||
+        Indexer.PUBLISHED_HVARIABLE_INDEX.equals(alias)) {
+      return Arrays.asList(
+        createMappingProperties(Indexer.HARMONIZED_VARIABLE_TYPE),
+        createMappingProperties(Indexer.VARIABLE_TYPE));
     }
+    return Collections.emptyList();
   }
 
   private XContentBuilder createMappingProperties(String type) throws IOException {
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.support;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read a property of an indexed document through its getter, getters are looked up once per class.
+ */
+final public class DocumentProperties {
+
+  private static final Map<Class<?>, Map<String, Optional<Method>>> getters = new ConcurrentHashMap<>();
+
+  private DocumentProperties() {}
+
+  /**
+   * Get the string value of a document property.
+   *
+   * @param document
+   * @param name property name, i.e. "studyId" is read with "getStudyId()"
+   * @return the value, null if the document has no such property or if it is not set
+   */
+  @Nullable
+  public static String getString(Object document, String name) {
+    Optional<Method> getter = getters.computeIfAbsent(document.getClass(), c -> new ConcurrentHashMap<>())
+      .computeIfAbsent(name, n -> findGetter(document.getClass(), n));
+    if (getter.isEmpty()) return null;
+    try {
+      Object value = getter.get().invoke(document);
+      return value == null ? null : value.toString();
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  //
+  // Private methods
+  //
+
+  private static Optional<Method> findGetter(Class<?> clazz, String name) {
+    try {
+      Method getter = clazz.getMethod("get" + Character.toUpperCase(name.charAt(0)) + name.substring(1));
+      return getter.getReturnType() == void.class ? Optional.empty() : Optional.of(getter);
+    } catch (NoSuchMethodException e) {
+      return Optional.empty();
+    }
+  }
+}
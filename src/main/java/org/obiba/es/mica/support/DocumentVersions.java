@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.support;
+
+import org.springframework.data.domain.Auditable;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+
+/**
+ * External version of an indexed document: its last modification time in milliseconds, when it is auditable.
+ */
+final public class DocumentVersions {
+
+  private DocumentVersions() {}
+
+  /**
+   * Get the version of a document.
+   *
+   * @param document
+   * @return the version, null if the document has none
+   */
+  @Nullable
+  public static Long of(Object document) {
+    if (!(document instanceof Auditable)) return null;
+    return ((Auditable<?, ?, ?>) document).getLastModifiedDate()
+      .map(DocumentVersions::toEpochMilli)
+      .orElse(null);
+  }
+
+  @Nullable
+  static Long toEpochMilli(TemporalAccessor date) {
+    if (date.isSupported(ChronoField.INSTANT_SECONDS)) return Instant.from(date).toEpochMilli();
+    // local dates are all in the same time zone, which one does not matter for ordering
+    if (date instanceof LocalDateTime) return ((LocalDateTime) date).toInstant(ZoneOffset.UTC).toEpochMilli();
+    return null;
+  }
+}
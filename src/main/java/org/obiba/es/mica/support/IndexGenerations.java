@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.support;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Mica index names are aliases to a physical index, named after the alias with a generation suffix
+ * (i.e. "variable-published" => "variable-published-v3"), so that an index can be rebuilt aside and swapped.
+ */
+final public class IndexGenerations {
+
+  private static final Pattern GENERATION_PATTERN = Pattern.compile("^(.+)-v(\\d+)$");
+
+  private IndexGenerations() {}
+
+  /**
+   * Get the name of the physical index of the given generation.
+   *
+   * @param alias
+   * @param generation
+   * @return
+   */
+  public static String generationName(String alias, int generation) {
+    return alias + "-v" + generation;
+  }
+
+  /**
+   * Get the wildcard expression matching all the generations of an alias.
+   *
+   * @param alias
+   * @return
+   */
+  public static String generationsPattern(String alias) {
+    return alias + "-v*";
+  }
+
+  /**
+   * Get the alias of a physical index name, or the name itself if it is not a generation.
+   *
+   * @param indexName
+   * @return
+   */
+  public static String aliasOf(String indexName) {
+    Matcher matcher = GENERATION_PATTERN.matcher(indexName);
+    return matcher.matches() ? matcher.group(1) : indexName;
+  }
+
+  /**
+   * Get the generation number of a physical index name, 0 if it is not a generation.
+   *
+   * @param indexName
+   * @return
+   */
+  public static int generationOf(String indexName) {
+    Matcher matcher = GENERATION_PATTERN.matcher(indexName);
+    return matcher.matches() ? Integer.parseInt(matcher.group(2)) : 0;
+  }
+
+  public static boolean isGenerationOf(String indexName, String alias) {
+    return generationOf(indexName) > 0 && alias.equals(aliasOf(indexName));
+  }
+}
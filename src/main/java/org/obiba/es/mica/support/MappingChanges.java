@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.support;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Compares the mapping of an index with the one it is expected to have: new fields and new multi-fields can be added
+ * to the index, a field whose type or parameters changed requires the documents to be indexed again. Fields of the
+ * index that are not expected any more are ignored, a mapping cannot forget them.
+ */
+final public class MappingChanges {
+
+  public enum Change {
+    NONE, ADDITIVE, INCOMPATIBLE
+  }
+
+  private static final String PROPERTIES = "properties";
+
+  private static final String FIELDS = "fields";
+
+  private static final String TYPE = "type";
+
+  private static final String OBJECT = "object";
+
+  private MappingChanges() {}
+
+  /**
+   * @param current the mapping of the index
+   * @param expected the mapping the index would be created with
+   * @return the most significant change between the two mappings
+   */
+  public static Change compare(JsonNode current, JsonNode expected) {
+    Change change = compareProperties(current.path(PROPERTIES), expected.path(PROPERTIES));
+    // dynamic templates are replaced by name, they only apply to fields to come
+    if (expected.has("dynamic_templates") && !expected.get("dynamic_templates").equals(current.get("dynamic_templates"))) {
+      change = max(change, Change.ADDITIVE);
+    }
+    return change;
+  }
+
+  //
+  // Private methods
+  //
+
+  private static Change compareProperties(JsonNode current, JsonNode expected) {
+    Change change = Change.NONE;
+    Iterator<Map.Entry<String, JsonNode>> fields = expected.fields();
+    while (fields.hasNext() && change != Change.INCOMPATIBLE) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      JsonNode currentField = current.get(field.getKey());
+      change = max(change, currentField == null ? Change.ADDITIVE : compareField(currentField, field.getValue()));
+    }
+    return change;
+  }
+
+  private static Change compareField(JsonNode current, JsonNode expected) {
+    if (!current.path(TYPE).asText(OBJECT).equals(expected.path(TYPE).asText(OBJECT))) return Change.INCOMPATIBLE;
+
+    Change change = Change.NONE;
+    Iterator<Map.Entry<String, JsonNode>> parameters = expected.fields();
+    while (parameters.hasNext() && change != Change.INCOMPATIBLE) {
+      Map.Entry<String, JsonNode> parameter = parameters.next();
+      switch (parameter.getKey()) {
+        case TYPE:
+          break;
+        case PROPERTIES:
+        case FIELDS:
+          change = max(change, compareProperties(current.path(parameter.getKey()), parameter.getValue()));
+          break;
+        default:
+          if (!parameter.getValue().equals(current.get(parameter.getKey()))) change = Change.INCOMPATIBLE;
+      }
+    }
+    return change;
+  }
+
+  private static Change max(Change change, Change other) {
+    return change.compareTo(other) >= 0 ? change : other;
+  }
+}
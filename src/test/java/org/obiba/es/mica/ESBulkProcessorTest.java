@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ESBulkProcessorTest {
+
+  @Test
+  public void retryableFailures() {
+    assertThat(ESBulkProcessor.isRetryable(429, null)).isTrue();
+    assertThat(ESBulkProcessor.isRetryable(503, "unavailable_shards_exception")).isTrue();
+    assertThat(ESBulkProcessor.isRetryable(500, "es_rejected_execution_exception")).isTrue();
+    assertThat(ESBulkProcessor.isRetryable(403, "cluster_block_exception")).isTrue();
+    assertThat(ESBulkProcessor.isRetryable(400, "mapper_parsing_exception")).isFalse();
+    assertThat(ESBulkProcessor.isRetryable(409, "version_conflict_engine_exception")).isFalse();
+    assertThat(ESBulkProcessor.isRetryable(404, "index_not_found_exception")).isFalse();
+  }
+
+  @Test
+  public void retryDelayIsBoundedExponentialBackoff() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(ESBulkProcessor.getRetryDelay(500, 1)).isBetween(250L, 500L);
+      assertThat(ESBulkProcessor.getRetryDelay(500, 3)).isBetween(1000L, 2000L);
+      assertThat(ESBulkProcessor.getRetryDelay(500, 30)).isBetween(30000L, 60000L);
+      assertThat(ESBulkProcessor.getRetryDelay(1, 1)).isBetween(1L, 2L);
+    }
+  }
+
+  @Test
+  public void rejectedItemsAreCopiedInOrder() {
+    ESBulkProcessor.Chunk submitted = newChunk(1, "a", "b", "c", "d");
+    ESBulkProcessor.Chunk retry = new ESBulkProcessor.Chunk(1, 1, new ESBulkProcessor.ChunkBuffer(16));
+    retry.copy(submitted, 1);
+    retry.copy(submitted, 3);
+
+    assertThat(retry.size()).isEqualTo(2);
+    assertThat(text(retry.slice(0))).isEqualTo(operation("b"));
+    assertThat(text(retry.slice(1))).isEqualTo(operation("d"));
+    assertThat(retry.hash(0)).isEqualTo(submitted.hash(1));
+    assertThat(new String(retry.buffer.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(operation("b") + operation("d"));
+  }
+
+  @Test
+  public void rollbackRemovesLastOperation() {
+    ESBulkProcessor.Chunk chunk = newChunk(1, "a", "b");
+    chunk.begin("c");
+    chunk.buffer.writeBytes("{\"index\":".getBytes(StandardCharsets.UTF_8));
+    chunk.rollback();
+
+    assertThat(chunk.size()).isEqualTo(2);
+    assertThat(text(chunk.slice(1))).isEqualTo(operation("b"));
+    assertThat(new String(chunk.buffer.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(operation("a") + operation("b"));
+  }
+
+  @Test
+  public void progressIsNotifiedInOrderByTheProducer() {
+    ESSearchEngineService service = new ESSearchEngineService();
+    service.configure(new Properties());
+    List<Integer> progress = new ArrayList<>();
+    ESBulkProcessor processor = new ESBulkProcessor(service, "test", () -> {}, null);
+    List<String> lastIds = new ArrayList<>();
+    processor.setProgressListener((lastId, done) -> {
+      lastIds.add(lastId);
+      progress.add(done);
+    });
+
+    processor.acknowledge(completed(2, 20));
+    processor.notifyProgress();
+    assertThat(progress).isEmpty();
+    processor.acknowledge(completed(1, 10));
+    assertThat(progress).isEmpty();
+    processor.notifyProgress();
+    assertThat(progress).containsExactly(20);
+    processor.acknowledge(completed(4, 40));
+    processor.acknowledge(completed(3, 30));
+    processor.notifyProgress();
+    processor.notifyProgress();
+    assertThat(progress).containsExactly(20, 40);
+    assertThat(lastIds).containsExactly("id2", "id4");
+  }
+
+  private ESBulkProcessor.Chunk newChunk(int number, String... ids) {
+    ESBulkProcessor.Chunk chunk = new ESBulkProcessor.Chunk(number, 0, new ESBulkProcessor.ChunkBuffer(16));
+    for (String id : ids) {
+      chunk.begin(id);
+      chunk.buffer.writeBytes(operation(id).getBytes(StandardCharsets.UTF_8));
+    }
+    return chunk;
+  }
+
+  private ESBulkProcessor.Chunk completed(int number, int lastOperation) {
+    ESBulkProcessor.Chunk chunk = new ESBulkProcessor.Chunk(number, 0, new ESBulkProcessor.ChunkBuffer(16));
+    chunk.lastOperation = lastOperation;
+    chunk.lastId = "id" + number;
+    return chunk;
+  }
+
+  private String operation(String id) {
+    return "{\"delete\":{\"_id\":\"" + id + "\"}}\n";
+  }
+
+  private String text(byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
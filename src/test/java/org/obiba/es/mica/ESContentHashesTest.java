@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ESContentHashesTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ESContentHashes hashes;
+
+  @Before
+  public void setUp() {
+    hashes = new ESContentHashes(folder.getRoot());
+  }
+
+  @Test
+  public void hashesAreSavedAndLoadedByAlias() {
+    hashes.update("study-published-v2", Map.of("s1", 1L, "s2", 2L));
+
+    ESContentHashes loaded = new ESContentHashes(folder.getRoot());
+    assertThat(loaded.get("study-published")).containsOnly(Map.entry("s1", 1L), Map.entry("s2", 2L));
+    assertThat(loaded.get("study-published-v3")).isEqualTo(loaded.get("study-published"));
+  }
+
+  @Test
+  public void updatedHashesAreMerged() {
+    hashes.update("network-draft", Map.of("n1", 1L, "n2", 2L));
+    hashes.update("network-draft", Map.of("n2", 3L));
+
+    assertThat(hashes.get("network-draft")).containsOnly(Map.entry("n1", 1L), Map.entry("n2", 3L));
+  }
+
+  @Test
+  public void replacedHashesDropTheOthers() {
+    hashes.update("network-draft", Map.of("n1", 1L, "n2", 2L));
+    hashes.replace("network-draft-v2", Map.of("n3", 3L));
+
+    assertThat(new ESContentHashes(folder.getRoot()).get("network-draft")).containsOnly(Map.entry("n3", 3L));
+  }
+
+  @Test
+  public void removedHashesAreSavedOnDemand() {
+    hashes.update("dataset-draft", Map.of("d1", 1L, "d2", 2L));
+    hashes.remove("dataset-draft", "d1");
+    assertThat(hashes.get("dataset-draft")).containsOnly(Map.entry("d2", 2L));
+    assertThat(new ESContentHashes(folder.getRoot()).get("dataset-draft")).containsKey("d1");
+
+    hashes.save();
+    assertThat(new ESContentHashes(folder.getRoot()).get("dataset-draft")).containsOnly(Map.entry("d2", 2L));
+  }
+
+  @Test
+  public void clearedHashesAreDeleted() {
+    hashes.update("dataset-draft", Map.of("d1", 1L));
+    hashes.clear("dataset-draft");
+
+    assertThat(hashes.get("dataset-draft")).isEmpty();
+    assertThat(new File(folder.getRoot(), "dataset-draft.hashes")).doesNotExist();
+  }
+
+  @Test
+  public void unreadableHashesAreIgnored() throws IOException {
+    Files.write(new File(folder.getRoot(), "variable-draft.hashes").toPath(), new byte[] { 0, 0, 0, 2, 0 });
+
+    assertThat(hashes.get("variable-draft")).isEmpty();
+  }
+}
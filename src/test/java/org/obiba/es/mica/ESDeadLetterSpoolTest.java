@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ESDeadLetterSpoolTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ESSearchEngineService service;
+
+  private ESDeadLetterSpool spool;
+
+  private RecordingBulkProcessor replayed;
+
+  private final List<JsonNode> updatesByQuery = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    service = new ESSearchEngineService();
+    service.configure(new Properties());
+    spool = new ESDeadLetterSpool(service, folder.getRoot());
+    replayed = new RecordingBulkProcessor(service);
+  }
+
+  @Test
+  public void spooledOperationsAreReplayedAsWritten() {
+    spool.add("study-published-v2", "index", "s1", "n1", Map.of("name", "Study 1"));
+    spool.add("study-published", "delete", "s2", null, null);
+
+    assertThat(spool.getIndexNames()).containsExactly("study-published");
+    assertThat(spool.replay("study-published", name -> replayed, updatesByQuery::add)).isEqualTo(2);
+    assertThat(replayed.ids).containsExactly("s1", "s2");
+    assertThat(replayed.actions).containsExactly("{\"index\":{\"_id\":\"s1\",\"routing\":\"n1\"}}", "{\"delete\":{\"_id\":\"s2\"}}");
+    assertThat(replayed.sources).containsExactly("{\"name\":\"Study 1\"}", null);
+    assertThat(spool.getIndexNames()).isEmpty();
+  }
+
+  @Test
+  public void bulkFailuresAreReplayed() {
+    byte[] request = "{\"index\":{\"_id\":\"v1\"}}\n{\"name\":\"v\"}\n".getBytes(StandardCharsets.UTF_8);
+    spool.add("variable-published", Collections.singletonList(
+      new ESBulkProcessor.Failure("index", "v1", 503, "unavailable_shards_exception", "unavailable", request)));
+
+    assertThat(spool.replay("variable-published", name -> replayed, updatesByQuery::add)).isEqualTo(1);
+    assertThat(replayed.ids).containsExactly("v1");
+    assertThat(replayed.sources).containsExactly("{\"name\":\"v\"}");
+  }
+
+  @Test
+  public void updatesByQueryAreReplayedInTurn() {
+    ObjectNode operation = service.getObjectMapper().createObjectNode();
+    operation.putObject("query").putObject("term").put("studyId", "s1");
+    operation.putObject("script").put("source", "ctx._source.name = params.name").putObject("params").put("name", "x");
+    spool.add("variable-published", "delete", "v1", null, null);
+    spool.addUpdateByQuery("variable-published", operation);
+
+    assertThat(spool.replay("variable-published", name -> replayed, updatesByQuery::add)).isEqualTo(2);
+    assertThat(replayed.ids).containsExactly("v1");
+    assertThat(replayed.closed).isTrue();
+    assertThat(updatesByQuery).containsExactly(operation);
+  }
+
+  @Test
+  public void malformedLinesAreSkipped() throws IOException {
+    spool.add("network-draft", "index", "n1", null, Map.of("name", "Network 1"));
+    Files.writeString(new File(folder.getRoot(), "network-draft.ndjson").toPath(),
+      "{\"index\":{\"_id\":\"n2\"}}\n{\"name\":\n{\"name\":\"orphan\"}\n{\"delete\":{\"_id\":\"n3\"}}\n{\"index\":{\"_i",
+      StandardOpenOption.APPEND);
+
+    assertThat(spool.replay("network-draft", name -> replayed, updatesByQuery::add)).isEqualTo(2);
+    assertThat(replayed.ids).containsExactly("n1", "n3");
+    assertThat(spool.getIndexNames()).isEmpty();
+  }
+
+  @Test
+  public void discardedOperationsAreNotReplayed() {
+    spool.add("dataset-draft", "delete", "d1", null, null);
+    spool.discard("dataset-draft");
+
+    assertThat(spool.getIndexNames()).isEmpty();
+    assertThat(spool.replay("dataset-draft", name -> replayed, updatesByQuery::add)).isZero();
+  }
+
+  @Test
+  public void heldOperationsAreReleasedBeforeNewOnes() {
+    spool.add("dataset-draft", "delete", "d1", null, null);
+    spool.hold("dataset-draft");
+    spool.add("dataset-draft", "delete", "d2", null, null);
+    spool.release("dataset-draft");
+
+    spool.replay("dataset-draft", name -> replayed, updatesByQuery::add);
+    assertThat(replayed.ids).containsExactly("d1", "d2");
+  }
+
+  @Test
+  public void droppedHeldOperationsAreNotReplayed() {
+    spool.add("dataset-draft", "delete", "d1", null, null);
+    spool.hold("dataset-draft");
+    spool.add("dataset-draft", "delete", "d2", null, null);
+    spool.dropHeld("dataset-draft");
+    spool.release("dataset-draft");
+
+    spool.replay("dataset-draft", name -> replayed, updatesByQuery::add);
+    assertThat(replayed.ids).containsExactly("d2");
+  }
+
+  private static class RecordingBulkProcessor extends ESBulkProcessor {
+
+    private final List<String> ids = new ArrayList<>();
+
+    private final List<String> actions = new ArrayList<>();
+
+    private final List<String> sources = new ArrayList<>();
+
+    private boolean closed;
+
+    private RecordingBulkProcessor(ESSearchEngineService service) {
+      super(service, "test", () -> {}, null);
+    }
+
+    @Override
+    void append(String id, String action, String source) {
+      ids.add(id);
+      actions.add(action);
+      sources.add(source);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.Option;
+import com.jayway.jsonpath.ReadContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the compiled analyzed field lookup with the JsonPath deep scan it replaces, on a variable mapping with
+ * hundreds of localized attribute fields. Run with:
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.obiba.es.mica.ESIndexFieldMappingBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ESIndexFieldMappingBenchmark {
+
+  private static final int ATTRIBUTE_COUNT = 300;
+
+  private static final String[] LOCALES = {"en", "fr", "und"};
+
+  private ESIndexFieldMapping compiledMapping;
+
+  private ReadContext jsonPathContext;
+
+  private String[] fields;
+
+  private int next = 0;
+
+  @Setup
+  public void setup() {
+    Map<String, Property> properties = newVariableMapping();
+    compiledMapping = ESIndexFieldMapping.of(properties);
+    jsonPathContext = JsonPath.using(Configuration.defaultConfiguration().addOptions(Option.ALWAYS_RETURN_LIST))
+      .parse(toJsonPathDocument(properties));
+
+    List<String> queried = new ArrayList<>();
+    for (int i = 0; i < ATTRIBUTE_COUNT; i += 7) {
+      queried.add("attributes.attr" + i + ".en");
+      queried.add("attributes.attr" + i + ".und");
+    }
+    queried.add("name");
+    queried.add("studyId");
+    queried.add("datasetId");
+    fields = queried.toArray(new String[0]);
+  }
+
+  @Benchmark
+  public boolean compiledLookup() {
+    return compiledMapping.isAnalyzed(nextField());
+  }
+
+  @Benchmark
+  public boolean jsonPathDeepScan() {
+    String fieldName = nextField();
+    List<Object> result = jsonPathContext.read(String.format("$..%s..analyzed", fieldName.replaceAll("\\.", "..")));
+    return result.size() > 0;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(ESIndexFieldMappingBenchmark.class.getSimpleName()).build()).run();
+  }
+
+  //
+  // Private methods
+  //
+
+  private String nextField() {
+    next = (next + 1) % fields.length;
+    return fields[next];
+  }
+
+  private static Map<String, Property> newVariableMapping() {
+    Map<String, Property> properties = new HashMap<>();
+    for (String field : new String[]{"id", "studyId", "datasetId", "populationId", "dceId", "entityType", "valueType"}) {
+      properties.put(field, Property.of(p -> p.keyword(k -> k)));
+    }
+    properties.put("name", ESIndexFieldMappingTest.analyzedKeyword());
+
+    Map<String, Property> attributes = new HashMap<>();
+    for (int i = 0; i < ATTRIBUTE_COUNT; i++) {
+      Map<String, Property> localized = new HashMap<>();
+      for (String locale : LOCALES) localized.put(locale, ESIndexFieldMappingTest.analyzedKeyword());
+      attributes.put("attr" + i, Property.of(p -> p.object(o -> o.properties(localized))));
+    }
+    properties.put("attributes", Property.of(p -> p.object(o -> o.properties(attributes))));
+    return properties;
+  }
+
+  /**
+   * Same document structure as the one the deep scan used to run on.
+   */
+  private static Map<String, Object> toJsonPathDocument(Map<String, Property> properties) {
+    Map<String, Object> result = new HashMap<>();
+    properties.forEach((key, property) -> {
+      Map<String, Object> node = new HashMap<>();
+      if (property._kind() == Property.Kind.Object) {
+        node.put("properties", toJsonPathDocument(property.object().properties()));
+      } else {
+        node.put("type", property._kind().jsonValue());
+        if (property._kind() == Property.Kind.Keyword && property.keyword().fields() != null) {
+          Map<String, Object> fields = new HashMap<>();
+          property.keyword().fields().forEach((fieldKey, fieldProperty) ->
+            fields.put(fieldKey, Map.of("type", fieldProperty._kind().jsonValue())));
+          node.put("fields", fields);
+        }
+      }
+      result.put(key, node);
+    });
+    return result;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import org.junit.Test;
+
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ESIndexFieldMappingTest {
+
+  @Test
+  public void analyzedKeywordField() {
+    ESIndexFieldMapping mapping = ESIndexFieldMapping.of(newMapping());
+    assertThat(mapping.isAnalyzed("name")).isTrue();
+    assertThat(mapping.isAnalyzed("id")).isFalse();
+  }
+
+  @Test
+  public void analyzedLocalizedField() {
+    ESIndexFieldMapping mapping = ESIndexFieldMapping.of(newMapping());
+    assertThat(mapping.isAnalyzed("attributes.label.en")).isTrue();
+    assertThat(mapping.isAnalyzed("attributes.label")).isTrue();
+    assertThat(mapping.isAnalyzed("label.en")).isTrue();
+    assertThat(mapping.isAnalyzed("en.label")).isFalse();
+    assertThat(mapping.isAnalyzed("attributes.label.fr")).isFalse();
+  }
+
+  @Test
+  public void emptyMapping() {
+    assertThat(ESIndexFieldMapping.empty().isAnalyzed("name")).isFalse();
+    assertThat(ESIndexFieldMapping.of(null).isAnalyzed("name")).isFalse();
+  }
+
+  static Map<String, Property> newMapping() {
+    Map<String, Property> properties = new HashMap<>();
+    properties.put("id", Property.of(p -> p.keyword(k -> k)));
+    properties.put("name", analyzedKeyword());
+    properties.put("attributes", Property.of(p -> p.object(o -> o
+      .properties("label", l -> l.object(lo -> lo.properties("en", analyzedKeyword()))))));
+    return properties;
+  }
+
+  static Property analyzedKeyword() {
+    return Property.of(p -> p.keyword(k -> k.fields("analyzed", f -> f.text(t -> t))));
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ESIndexTemplatesTest {
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  public void mergeAddsProperties() throws Exception {
+    ObjectNode harmonized = (ObjectNode) mapper.readTree("{\"properties\":{\"id\":{\"type\":\"keyword\"},\"studyId\":{\"type\":\"keyword\"}}}");
+    ObjectNode variable = (ObjectNode) mapper.readTree("{\"properties\":{\"id\":{\"type\":\"keyword\"},\"name\":{\"type\":\"text\"}}}");
+
+    ObjectNode merged = ESIndexTemplates.merge(harmonized, variable);
+
+    assertThat(merged.path("properties").size()).isEqualTo(3);
+    assertThat(merged.at("/properties/studyId/type").asText()).isEqualTo("keyword");
+    assertThat(merged.at("/properties/name/type").asText()).isEqualTo("text");
+  }
+
+  @Test
+  public void mergeReplacesValuesAndArrays() throws Exception {
+    ObjectNode first = (ObjectNode) mapper.readTree("{\"dynamic_templates\":[{\"a\":{}}],\"properties\":{\"name\":{\"type\":\"keyword\"}}}");
+    ObjectNode second = (ObjectNode) mapper.readTree("{\"dynamic_templates\":[{\"b\":{}}],\"properties\":{\"name\":{\"type\":\"text\"}}}");
+
+    ObjectNode merged = ESIndexTemplates.merge(first, second);
+
+    assertThat(merged.path("dynamic_templates").size()).isEqualTo(1);
+    assertThat(merged.path("dynamic_templates").get(0).has("b")).isTrue();
+    assertThat(merged.at("/properties/name/type").asText()).isEqualTo("text");
+  }
+}
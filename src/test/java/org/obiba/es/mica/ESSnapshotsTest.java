@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ESSnapshotsTest {
+
+  private ESSearchEngineService service;
+
+  @Before
+  public void setUp() {
+    service = new ESSearchEngineService();
+    service.configure(new Properties());
+  }
+
+  @Test
+  public void snapshotIsReadFromTheRepositoryListing() {
+    ObjectNode node = service.getObjectMapper().createObjectNode()
+      .put("snapshot", "study-published.1000")
+      .put("state", "SUCCESS")
+      .put("start_time_in_millis", 1000L);
+    node.putArray("indices").add("study-published-v3");
+
+    ESSnapshots.Snapshot snapshot = ESSnapshots.Snapshot.of(node);
+    assertThat(snapshot.getName()).isEqualTo("study-published.1000");
+    assertThat(snapshot.getLabel()).isEqualTo("study-published");
+    assertThat(snapshot.getState()).isEqualTo("SUCCESS");
+    assertThat(snapshot.getIndices()).containsExactly("study-published-v3");
+    assertThat(snapshot.getStartTime()).isEqualTo(1000L);
+  }
+
+  @Test
+  public void onlyTheMostRecentSuccessfulSnapshotsAreRetained() {
+    List<ESSnapshots.Snapshot> snapshots = List.of(
+      snapshot("mica.1", "SUCCESS"),
+      snapshot("mica.2", "FAILED"),
+      snapshot("study-published.3", "SUCCESS"),
+      snapshot("mica.4", "SUCCESS"),
+      snapshot("mica.5", "PARTIAL"),
+      snapshot("mica.6", "SUCCESS"));
+
+    assertThat(ESSnapshots.getExpired(snapshots, "mica", 2)).extracting(ESSnapshots.Snapshot::getName)
+      .containsExactly("mica.1", "mica.2");
+    assertThat(ESSnapshots.getExpired(snapshots, "mica", 0)).extracting(ESSnapshots.Snapshot::getName)
+      .containsExactly("mica.1", "mica.2", "mica.4", "mica.5");
+    assertThat(ESSnapshots.getExpired(snapshots, "mica", 3)).isEmpty();
+    assertThat(ESSnapshots.getExpired(snapshots, "study-published", 1)).isEmpty();
+  }
+
+  @Test
+  public void snapshotsInProgressAreNotExpired() {
+    List<ESSnapshots.Snapshot> snapshots = List.of(
+      snapshot("mica.1", "IN_PROGRESS"),
+      snapshot("mica.2", "SUCCESS"),
+      snapshot("mica.3", "SUCCESS"));
+
+    assertThat(ESSnapshots.getExpired(snapshots, "mica", 1)).extracting(ESSnapshots.Snapshot::getName)
+      .containsExactly("mica.2");
+  }
+
+  @Test
+  public void snapshotsAreDisabledWithoutLocation() {
+    ESSnapshots snapshots = new ESSnapshots(service);
+    try {
+      assertThat(snapshots.snapshot()).isNull();
+      assertThat(snapshots.list()).isEmpty();
+    } finally {
+      snapshots.stop();
+    }
+  }
+
+  private ESSnapshots.Snapshot snapshot(String name, String state) {
+    return ESSnapshots.Snapshot.of(service.getObjectMapper().createObjectNode()
+      .put("snapshot", name)
+      .put("state", state)
+      .put("start_time_in_millis", Long.parseLong(name.substring(name.lastIndexOf('.') + 1))));
+  }
+}
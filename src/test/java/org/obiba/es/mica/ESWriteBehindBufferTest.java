@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ESWriteBehindBufferTest {
+
+  private ESSearchEngineService service;
+
+  private final List<RecordingBulkProcessor> flushed = new ArrayList<>();
+
+  private ESWriteBehindBuffer buffer;
+
+  @Before
+  public void setUp() {
+    service = new ESSearchEngineService();
+    service.configure(new Properties());
+    // not flushed periodically during the tests
+    buffer = newBuffer(100);
+  }
+
+  @After
+  public void tearDown() {
+    buffer.close();
+  }
+
+  @Test
+  public void successiveWritesOfADocumentAreCoalesced() {
+    buffer.index("study-draft", "s1", null, Map.of("name", "Study 1"));
+    buffer.index("study-draft", "s2", null, Map.of("name", "Study 2"));
+    buffer.index("study-draft", "s1", null, Map.of("name", "Study 1 bis"));
+    buffer.delete("study-draft", "s2", null);
+    buffer.flush("study-draft");
+
+    assertThat(flushed).hasSize(1);
+    RecordingBulkProcessor processor = flushed.get(0);
+    assertThat(processor.indexName).isEqualTo("study-draft");
+    assertThat(processor.ids).containsExactly("s1", "s2");
+    assertThat(processor.actions).containsExactly("{\"index\":{\"_id\":\"s1\"}}", "{\"delete\":{\"_id\":\"s2\"}}");
+    assertThat(processor.sources).containsExactly("{\"name\":\"Study 1 bis\"}", null);
+    assertThat(processor.closed).isTrue();
+  }
+
+  @Test
+  public void documentsAreSerializedWhenBuffered() {
+    Map<String, String> document = new HashMap<>();
+    document.put("name", "Network 1");
+    buffer.index("network-draft", "n1", null, document);
+    document.put("name", "changed");
+    buffer.flush();
+
+    assertThat(flushed.get(0).sources).containsExactly("{\"name\":\"Network 1\"}");
+  }
+
+  @Test
+  public void writesWithoutRoutingKeepTheBufferedOne() {
+    buffer.index("variable-draft", "v1", "d1", Map.of("name", "v"));
+    buffer.delete("variable-draft", "v1", null);
+    buffer.flush();
+
+    assertThat(flushed.get(0).actions).containsExactly("{\"delete\":{\"_id\":\"v1\",\"routing\":\"d1\"}}");
+  }
+
+  @Test
+  public void fullIndexIsFlushed() {
+    buffer.close();
+    buffer = newBuffer(2);
+    buffer.index("dataset-draft", "d1", null, Map.of("name", "Dataset 1"));
+    buffer.index("dataset-draft", "d1", null, Map.of("name", "Dataset 1 bis"));
+    assertThat(flushed).isEmpty();
+
+    buffer.delete("dataset-draft", "d2", null);
+    assertThat(flushed).hasSize(1);
+    assertThat(flushed.get(0).ids).containsExactly("d1", "d2");
+  }
+
+  @Test
+  public void pendingWritesAreSentOnClose() {
+    buffer.index("study-draft", "s1", null, Map.of("name", "Study 1"));
+    buffer.delete("network-draft", "n1", null);
+    buffer.close();
+
+    assertThat(flushed).extracting(processor -> processor.indexName).containsExactlyInAnyOrder("study-draft", "network-draft");
+  }
+
+  @Test
+  public void discardedWritesAreNotSent() {
+    buffer.index("study-draft", "s1", null, Map.of("name", "Study 1"));
+    buffer.index("network-draft", "n1", null, Map.of("name", "Network 1"));
+    buffer.discard("study-draft");
+    buffer.flush();
+
+    assertThat(flushed).hasSize(1);
+    assertThat(flushed.get(0).ids).containsExactly("n1");
+  }
+
+  private ESWriteBehindBuffer newBuffer(int maxDocuments) {
+    return new ESWriteBehindBuffer(service, indexName -> {
+      RecordingBulkProcessor processor = new RecordingBulkProcessor(service, indexName);
+      flushed.add(processor);
+      return processor;
+    }, maxDocuments, 3600000);
+  }
+
+  private static class RecordingBulkProcessor extends ESBulkProcessor {
+
+    private final String indexName;
+
+    private final List<String> ids = new ArrayList<>();
+
+    private final List<String> actions = new ArrayList<>();
+
+    private final List<String> sources = new ArrayList<>();
+
+    private boolean closed;
+
+    private RecordingBulkProcessor(ESSearchEngineService service, String indexName) {
+      super(service, indexName, () -> {}, null);
+      this.indexName = indexName;
+    }
+
+    @Override
+    void append(String id, String action, String source) {
+      ids.add(id);
+      actions.add(action);
+      sources.add(source);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
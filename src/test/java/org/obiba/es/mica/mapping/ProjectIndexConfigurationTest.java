@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.mapping;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.mica.spi.search.ConfigurationProvider;
+import org.obiba.mica.spi.search.Indexer;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class ProjectIndexConfigurationTest {
+
+  private final List<String> locales = Lists.newArrayList("en");
+
+  private final List<String> roles = Lists.newArrayList("contact");
+
+  private ProjectIndexConfiguration configuration;
+
+  @Before
+  public void setUp() {
+    ConfigurationProvider provider = createNiceMock(ConfigurationProvider.class);
+    expect(provider.getLocales()).andReturn(locales).anyTimes();
+    expect(provider.getRoles()).andReturn(roles).anyTimes();
+    replay(provider);
+    configuration = new ProjectIndexConfiguration(provider);
+  }
+
+  @Test
+  public void mappingsAreReused() {
+    List<String> mappings = configuration.getMappings(Indexer.DRAFT_PROJECT_INDEX);
+
+    assertThat(mappings).hasSize(1);
+    assertThat(configuration.getMappings(Indexer.DRAFT_PROJECT_INDEX)).isSameAs(mappings);
+  }
+
+  @Test
+  public void mappingsAreRebuiltWhenLocalesChange() {
+    List<String> mappings = configuration.getMappings(Indexer.DRAFT_PROJECT_INDEX);
+    assertThat(mappings.get(0)).doesNotContain("\"fr\"");
+
+    locales.add("fr");
+
+    assertThat(configuration.getMappings(Indexer.DRAFT_PROJECT_INDEX).get(0)).contains("\"fr\"");
+  }
+
+  @Test
+  public void otherIndexHasNoMappings() {
+    assertThat(configuration.getMappings(Indexer.PERSON_INDEX)).isEmpty();
+  }
+}
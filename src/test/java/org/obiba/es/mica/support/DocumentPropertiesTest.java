@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.support;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DocumentPropertiesTest {
+
+  @Test
+  public void readProperty() {
+    assertThat(DocumentProperties.getString(new Variable("s1", null), "studyId")).isEqualTo("s1");
+  }
+
+  @Test
+  public void unsetProperty() {
+    assertThat(DocumentProperties.getString(new Variable("s1", null), "datasetId")).isNull();
+  }
+
+  @Test
+  public void missingProperty() {
+    assertThat(DocumentProperties.getString(new Variable("s1", "d1"), "networkId")).isNull();
+  }
+
+  public static class Variable {
+
+    private final String studyId;
+
+    private final String datasetId;
+
+    Variable(String studyId, String datasetId) {
+      this.studyId = studyId;
+      this.datasetId = datasetId;
+    }
+
+    public String getStudyId() {
+      return studyId;
+    }
+
+    public String getDatasetId() {
+      return datasetId;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.support;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DocumentVersionsTest {
+
+  @Test
+  public void notAuditableHasNoVersion() {
+    assertThat(DocumentVersions.of("document")).isNull();
+  }
+
+  @Test
+  public void instantVersion() {
+    assertThat(DocumentVersions.toEpochMilli(Instant.ofEpochMilli(1234L))).isEqualTo(1234L);
+    assertThat(DocumentVersions.toEpochMilli(ZonedDateTime.ofInstant(Instant.ofEpochMilli(1234L), ZoneOffset.ofHours(2))))
+      .isEqualTo(1234L);
+  }
+
+  @Test
+  public void localDateTimeVersionIsOrdered() {
+    LocalDateTime date = LocalDateTime.of(2020, 1, 1, 10, 0);
+    assertThat(DocumentVersions.toEpochMilli(date.plusNanos(1000000))).isEqualTo(DocumentVersions.toEpochMilli(date) + 1);
+  }
+
+  @Test
+  public void dateWithoutTimeHasNoVersion() {
+    assertThat(DocumentVersions.toEpochMilli(LocalDate.of(2020, 1, 1))).isNull();
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.support;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexGenerationsTest {
+
+  @Test
+  public void generationNameRoundTrip() {
+    String name = IndexGenerations.generationName("variable-published", 3);
+    assertThat(name).isEqualTo("variable-published-v3");
+    assertThat(IndexGenerations.aliasOf(name)).isEqualTo("variable-published");
+    assertThat(IndexGenerations.generationOf(name)).isEqualTo(3);
+    assertThat(IndexGenerations.isGenerationOf(name, "variable-published")).isTrue();
+  }
+
+  @Test
+  public void plainIndexNameIsNotAGeneration() {
+    assertThat(IndexGenerations.aliasOf("study-draft")).isEqualTo("study-draft");
+    assertThat(IndexGenerations.generationOf("study-draft")).isEqualTo(0);
+    assertThat(IndexGenerations.isGenerationOf("study-draft", "study-draft")).isFalse();
+  }
+
+  @Test
+  public void otherIndexIsNotAGeneration() {
+    assertThat(IndexGenerations.isGenerationOf("variable-published-view", "variable-published")).isFalse();
+    assertThat(IndexGenerations.isGenerationOf("hvariable-published-v1", "variable-published")).isFalse();
+  }
+}
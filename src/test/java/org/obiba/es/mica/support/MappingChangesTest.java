@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.es.mica.support;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappingChangesTest {
+
+  private static final String CURRENT = "{\"properties\":{" +
+    "\"id\":{\"type\":\"keyword\"}," +
+    "\"name\":{\"properties\":{\"en\":{\"type\":\"keyword\",\"fields\":{\"analyzed\":{\"type\":\"text\",\"analyzer\":\"mica_index_analyzer\"}}}}}}}";
+
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  @Test
+  public void sameMappingHasNoChange() throws Exception {
+    assertThat(MappingChanges.compare(read(CURRENT), read(CURRENT))).isEqualTo(MappingChanges.Change.NONE);
+  }
+
+  @Test
+  public void newFieldIsAdditive() throws Exception {
+    JsonNode expected = read(CURRENT.replace("\"properties\":{\"en\"", "\"properties\":{\"fr\":{\"type\":\"keyword\"},\"en\""));
+    assertThat(MappingChanges.compare(read(CURRENT), expected)).isEqualTo(MappingChanges.Change.ADDITIVE);
+  }
+
+  @Test
+  public void removedFieldIsIgnored() throws Exception {
+    JsonNode expected = read("{\"properties\":{\"id\":{\"type\":\"keyword\"}}}");
+    assertThat(MappingChanges.compare(read(CURRENT), expected)).isEqualTo(MappingChanges.Change.NONE);
+  }
+
+  @Test
+  public void typeChangeIsIncompatible() throws Exception {
+    JsonNode expected = read(CURRENT.replace("\"id\":{\"type\":\"keyword\"}", "\"id\":{\"type\":\"long\"}"));
+    assertThat(MappingChanges.compare(read(CURRENT), expected)).isEqualTo(MappingChanges.Change.INCOMPATIBLE);
+  }
+
+  @Test
+  public void analyzerChangeIsIncompatible() throws Exception {
+    JsonNode expected = read(CURRENT.replace("mica_index_analyzer", "standard"));
+    assertThat(MappingChanges.compare(read(CURRENT), expected)).isEqualTo(MappingChanges.Change.INCOMPATIBLE);
+  }
+
+  private JsonNode read(String json) throws Exception {
+    return mapper.readTree(json);
+  }
+}